@@ -31,8 +31,8 @@ import static okhttp3.internal.Util.equal;
  * A specification for a connection to an origin server. For simple connections, this is the
  * server's hostname and port. If an explicit proxy is requested (or {@linkplain Proxy#NO_PROXY no
  * proxy} is explicitly requested), this also includes that proxy information. For secure
- * connections the address also includes the SSL socket factory, hostname verifier, and certificate
- * pinner.
+ * connections the address also includes the SSL socket factory, hostname verifier, certificate
+ * pinner, and TLS session cache.
  *
  * <p>HTTP requests that share the same {@code Address} may also share the same {@link Connection}.
  */
@@ -48,11 +48,25 @@ public final class Address {
   final SSLSocketFactory sslSocketFactory;
   final HostnameVerifier hostnameVerifier;
   final CertificatePinner certificatePinner;
+  final TlsSessionCache tlsSessionCache;
+
+  /** Lazily computed; zero until then. Addresses are used as hash keys on the connection path. */
+  private int hashCode;
 
   public Address(String uriHost, int uriPort, Dns dns, SocketFactory socketFactory,
       SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier,
       CertificatePinner certificatePinner, Authenticator proxyAuthenticator, Proxy proxy,
       List<Protocol> protocols, List<ConnectionSpec> connectionSpecs, ProxySelector proxySelector) {
+    this(uriHost, uriPort, dns, socketFactory, sslSocketFactory, hostnameVerifier,
+        certificatePinner, proxyAuthenticator, proxy, protocols, connectionSpecs, proxySelector,
+        null);
+  }
+
+  public Address(String uriHost, int uriPort, Dns dns, SocketFactory socketFactory,
+      SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier,
+      CertificatePinner certificatePinner, Authenticator proxyAuthenticator, Proxy proxy,
+      List<Protocol> protocols, List<ConnectionSpec> connectionSpecs, ProxySelector proxySelector,
+      TlsSessionCache tlsSessionCache) {
     this.url = new HttpUrl.Builder()
         .scheme(sslSocketFactory != null ? "https" : "http")
         .host(uriHost)
@@ -83,6 +97,7 @@ public final class Address {
     this.sslSocketFactory = sslSocketFactory;
     this.hostnameVerifier = hostnameVerifier;
     this.certificatePinner = certificatePinner;
+    this.tlsSessionCache = tlsSessionCache;
   }
 
   /**
@@ -151,11 +166,30 @@ public final class Address {
     return certificatePinner;
   }
 
+  /**
+   * Returns this address's TLS session cache, or null if this is not an HTTPS address or if
+   * session reuse is left to the SSL socket factory.
+   */
+  public TlsSessionCache tlsSessionCache() {
+    return tlsSessionCache;
+  }
+
   @Override public boolean equals(Object other) {
+    if (other == this) return true;
     if (other instanceof Address) {
       Address that = (Address) other;
       return this.url.equals(that.url)
-          && this.dns.equals(that.dns)
+          && equalsNonHost(that);
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if this address and {@code that} differ at most in their host and port, so that a
+   * connection to one could carry calls to the other. 除主机与端口外其他配置都相同
+   */
+  boolean equalsNonHost(Address that) {
+    return this.dns.equals(that.dns)
           && this.proxyAuthenticator.equals(that.proxyAuthenticator)
           && this.protocols.equals(that.protocols)
           && this.connectionSpecs.equals(that.connectionSpecs)
@@ -163,13 +197,15 @@ public final class Address {
           && equal(this.proxy, that.proxy)
           && equal(this.sslSocketFactory, that.sslSocketFactory)
           && equal(this.hostnameVerifier, that.hostnameVerifier)
-          && equal(this.certificatePinner, that.certificatePinner);
-    }
-    return false;
+          && equal(this.certificatePinner, that.certificatePinner)
+          && equal(this.tlsSessionCache, that.tlsSessionCache);
   }
 
   @Override public int hashCode() {
-    int result = 17;
+    int result = hashCode;
+    if (result != 0) return result;
+
+    result = 17;
     result = 31 * result + url.hashCode();
     result = 31 * result + dns.hashCode();
     result = 31 * result + proxyAuthenticator.hashCode();
@@ -180,6 +216,8 @@ public final class Address {
     result = 31 * result + (sslSocketFactory != null ? sslSocketFactory.hashCode() : 0);
     result = 31 * result + (hostnameVerifier != null ? hostnameVerifier.hashCode() : 0);
     result = 31 * result + (certificatePinner != null ? certificatePinner.hashCode() : 0);
+    result = 31 * result + (tlsSessionCache != null ? tlsSessionCache.hashCode() : 0);
+    hashCode = result;
     return result;
   }
 }
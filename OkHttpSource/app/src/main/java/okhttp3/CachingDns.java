@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import okhttp3.internal.Internal;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
+
+/**
+ * A {@link Dns} that caches the results of another, so that repeated connections to the same host
+ * don't block on a lookup. 带缓存的DNS
+ *
+ * <h3>Caching Policy</h3>
+ *
+ * <p>Successful lookups are fresh for the configured time to live. After that they are stale: a
+ * stale result is still returned immediately, but it also triggers a single background lookup
+ * that replaces it. Results that are older than the time to live plus the stale duration are not
+ * used. Failed lookups are cached for the negative time to live so that a missing host doesn't
+ * cost a lookup for every call. The JVM's {@link InetAddress} doesn't expose record TTLs, so these
+ * durations are the upper bounds on how old an answer can be.
+ *
+ * <p>Concurrent lookups of the same host are coalesced: only one of them asks the delegate, and
+ * the others wait for its result. At most {@code maxSize} hosts are cached; the least recently
+ * used host is dropped first.
+ *
+ * <h3>Cache Optimization</h3>
+ *
+ * <p>To measure cache effectiveness, this class tracks these statistics:
+ * <ul>
+ *     <li><strong>{@linkplain #getRequestCount() Request Count:}</strong> the number of lookups
+ *         since this cache was created.
+ *     <li><strong>{@linkplain #getHitCount() Hit Count:}</strong> the number of those lookups
+ *         answered from the cache, including stale and negative hits.
+ *     <li><strong>{@linkplain #getStaleHitCount() Stale Hit Count:}</strong> the number of hits
+ *         that returned a stale result and triggered a background refresh.
+ *     <li><strong>{@linkplain #getMissCount() Miss Count:}</strong> the number of lookups that had
+ *         to wait for the delegate.
+ *     <li><strong>{@linkplain #getDelegateCount() Delegate Count:}</strong> the number of lookups
+ *         made by the delegate, both for misses and for refreshes. Coalesced misses share one.
+ * </ul>
+ */
+public final class CachingDns implements Dns {
+  /** Background refreshes run on these threads. */
+  private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp CachingDns", true));
+
+  private final Dns delegate;
+  private final int maxSize;
+  private final long timeToLiveNanos;
+  private final long staleNanos;
+  private final long negativeTimeToLiveNanos;
+
+  /** Cached results in access order. 按访问顺序排列，队头最久未使用 */
+  private final LinkedHashMap<String, CachedResult> entries;
+
+  /** Lookups the delegate is working on, keyed by host. */
+  private final Map<String, Lookup> lookups = new HashMap<>();
+
+  private int requestCount;
+  private int hitCount;
+  private int staleHitCount;
+  private int missCount;
+  private int delegateCount;
+
+  /**
+   * Create a cache of up to 256 hosts around {@code delegate}. Results are fresh for 1 minute and
+   * may be served stale for 5 more minutes while they are refreshed. Failures are cached for 10
+   * seconds. These defaults are subject to change in future OkHttp releases.
+   */
+  public CachingDns(Dns delegate) {
+    this(delegate, 256, 60L, 300L, 10L, TimeUnit.SECONDS);
+  }
+
+  public CachingDns(Dns delegate, int maxSize, long timeToLive, long staleDuration,
+      long negativeTimeToLive, TimeUnit timeUnit) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    if (timeToLive <= 0) throw new IllegalArgumentException("timeToLive <= 0: " + timeToLive);
+    if (staleDuration < 0) {
+      throw new IllegalArgumentException("staleDuration < 0: " + staleDuration);
+    }
+    if (negativeTimeToLive < 0) {
+      throw new IllegalArgumentException("negativeTimeToLive < 0: " + negativeTimeToLive);
+    }
+    this.delegate = delegate;
+    this.maxSize = maxSize;
+    this.timeToLiveNanos = timeUnit.toNanos(timeToLive);
+    this.staleNanos = timeUnit.toNanos(staleDuration);
+    this.negativeTimeToLiveNanos = timeUnit.toNanos(negativeTimeToLive);
+    this.entries = new LinkedHashMap<String, CachedResult>(0, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+        return size() > CachingDns.this.maxSize;
+      }
+    };
+  }
+
+  @Override public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+    if (hostname == null) throw new UnknownHostException("hostname == null");
+
+    Lookup lookup;
+    boolean owner = false;
+    synchronized (this) {
+      requestCount++;
+      long now = System.nanoTime();
+      CachedResult entry = entries.get(hostname);
+
+      if (entry != null && now < entry.expiresAtNanos) {
+        hitCount++;
+        return entry.result();
+      }
+
+      if (entry != null && entry.addresses != null && now < entry.expiresAtNanos + staleNanos) {
+        hitCount++;
+        staleHitCount++;
+        refresh(hostname);
+        return entry.addresses;
+      }
+
+      missCount++;
+      lookup = lookups.get(hostname);
+      if (lookup == null) {
+        lookup = new Lookup(hostname);
+        lookups.put(hostname, lookup);
+        owner = true;
+      }
+    }
+
+    if (owner) lookup.execute();
+    return lookup.await();
+  }
+
+  /** Starts a background lookup of {@code hostname} unless one is already running. */
+  private void refresh(String hostname) {
+    assert (Thread.holdsLock(this));
+    if (lookups.containsKey(hostname)) return;
+
+    final Lookup lookup = new Lookup(hostname);
+    lookups.put(hostname, lookup);
+    executor.execute(new NamedRunnable("OkHttp CachingDns %s", hostname) {
+      @Override protected void execute() {
+        lookup.execute();
+      }
+    });
+  }
+
+  /** Stores {@code lookup}'s result, if it is one worth caching, and retires the lookup. */
+  private synchronized void complete(Lookup lookup) {
+    lookups.remove(lookup.hostname);
+    long now = System.nanoTime();
+    if (lookup.addresses != null) {
+      entries.put(lookup.hostname, new CachedResult(lookup.addresses, null, now + timeToLiveNanos));
+    } else if (lookup.exception instanceof UnknownHostException) {
+      CachedResult previous = entries.get(lookup.hostname);
+      if (previous != null && previous.addresses != null
+          && now < previous.expiresAtNanos + staleNanos) {
+        return; // A refresh failed. Keep serving the stale result until it expires.
+      }
+      if (negativeTimeToLiveNanos > 0) {
+        entries.put(lookup.hostname, new CachedResult(
+            null, (UnknownHostException) lookup.exception, now + negativeTimeToLiveNanos));
+      }
+    }
+  }
+
+  /** Removes all cached results. Lookups in progress are unaffected. */
+  public synchronized void evictAll() {
+    entries.clear();
+  }
+
+  /** Returns the number of hosts in this cache, including hosts with failed or stale results. */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized int getStaleHitCount() {
+    return staleHitCount;
+  }
+
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  public synchronized int getDelegateCount() {
+    return delegateCount;
+  }
+
+  /** A cached result: either addresses or the exception that the lookup failed with. */
+  private static final class CachedResult {
+    final List<InetAddress> addresses;
+    final UnknownHostException exception;
+    final long expiresAtNanos;
+
+    CachedResult(List<InetAddress> addresses, UnknownHostException exception, long expiresAtNanos) {
+      this.addresses = addresses;
+      this.exception = exception;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+
+    List<InetAddress> result() throws UnknownHostException {
+      if (addresses != null) return addresses;
+      throw copy(exception);
+    }
+  }
+
+  /** A single lookup by the delegate that any number of callers may wait for. */
+  private final class Lookup {
+    final String hostname;
+
+    // State guarded by this.
+    List<InetAddress> addresses;
+    Throwable exception;
+    boolean done;
+
+    Lookup(String hostname) {
+      this.hostname = hostname;
+    }
+
+    void execute() {
+      synchronized (CachingDns.this) {
+        delegateCount++;
+      }
+      List<InetAddress> result = null;
+      Throwable failure = null;
+      try {
+        result = Collections.unmodifiableList(delegate.lookup(hostname));
+      } catch (UnknownHostException | RuntimeException e) {
+        failure = e;
+        if (e instanceof RuntimeException) {
+          Internal.logger.log(Level.WARNING, "Dns lookup of " + hostname + " failed", e);
+        }
+      } catch (Error e) {
+        failure = e;
+        throw e;
+      } finally {
+        // Finish even if the delegate threw an Error, or waiting callers would hang forever.
+        synchronized (this) {
+          addresses = result;
+          exception = failure;
+          done = true;
+          notifyAll();
+        }
+        complete(this);
+      }
+    }
+
+    synchronized List<InetAddress> await() throws UnknownHostException {
+      boolean interrupted = false;
+      try {
+        while (!done) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+      if (addresses != null) return addresses;
+      if (exception instanceof UnknownHostException) throw copy((UnknownHostException) exception);
+      if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+      // The delegate threw an Error on the thread that ran the lookup. Fail without caching it.
+      UnknownHostException result =
+          new UnknownHostException("Dns lookup of " + hostname + " failed");
+      result.initCause(exception);
+      throw result;
+    }
+  }
+
+  /** Returns a new exception for this caller's stack, caused by the shared {@code exception}. */
+  private static UnknownHostException copy(UnknownHostException exception) {
+    UnknownHostException result = new UnknownHostException(exception.getMessage());
+    result.initCause(exception);
+    return result;
+  }
+}
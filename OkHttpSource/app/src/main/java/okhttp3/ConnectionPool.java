@@ -16,21 +16,36 @@
  */
 package okhttp3;
 
-import java.lang.ref.Reference;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import okhttp3.internal.Internal;
+import okhttp3.internal.NamedRunnable;
 import okhttp3.internal.RouteDatabase;
 import okhttp3.internal.Util;
+import okhttp3.internal.framed.Ping;
+import okhttp3.internal.http.Http1Pipeline;
+import okhttp3.internal.http.RouteException;
+import okhttp3.internal.http.RouteSelector;
 import okhttp3.internal.http.StreamAllocation;
+import okhttp3.internal.http.StreamAllocation.StreamAllocationReference;
 import okhttp3.internal.io.RealConnection;
 
 import static okhttp3.internal.Util.closeQuietly;
@@ -40,8 +55,19 @@ import static okhttp3.internal.Util.closeQuietly;
  * Manages reuse of HTTP and SPDY connections for reduced network latency. HTTP requests that share
  * the same {@link Address} may share a {@link Connection}. This class implements the policy of
  * which connections to keep open for future use.
+ *
+ * <p>The pool-wide idle limit and keep alive duration can be refined for individual hosts with
+ * {@link #setHostPolicy}. This lets a heavily used backend keep more idle connections, or cap the
+ * number of connections to a fragile one, without changing the defaults for every other host.
+ *
+ * <p>A host policy may also permit HTTP/1.1 pipelining. GET and HEAD requests to matching hosts
+ * then share busy connections instead of opening new ones. If a pipelined exchange fails, its
+ * requests are replayed and the address stops pipelining for a while.
  */
 public final class ConnectionPool {
+  /** How long an address whose pipelined exchanges failed sends one request per connection. */
+  private static final long PIPELINING_RETRY_DELAY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
   /**
    * Background threads are used to cleanup expired connections. There will be at most a single
    * thread running per connection pool. The thread pool executor permits the pool itself to be
@@ -51,10 +77,17 @@ public final class ConnectionPool {
       Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
       new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp ConnectionPool", true));
 
-  /** The maximum number of idle connections for each address. */
+  /** Runs cleanup when it is started by a connection that uses virtual threads. */
+  private static final Executor virtualExecutor =
+      Util.virtualThreadExecutor("OkHttp ConnectionPool");
+
+  /** The maximum number of idle connections across all addresses. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
 
+  /** The policy of hosts that don't match any {@linkplain #setHostPolicy host policy}. */
+  private final HostPolicy defaultPolicy;
+
   //当用户socket连接成功，向连接池中put新的socket时，回收函数会被主动调用，线程池就会执行cleanupRunnable，如下
   //Socket清理的Runnable，每当put操作时，就会被主动调用
 //注意put操作是在网络线程
@@ -84,10 +117,55 @@ public final class ConnectionPool {
   };
 
   //真是连接的线程队列
-  private final Deque<RealConnection> connections = new ArrayDeque<>();
+  private final Set<RealConnection> connections = new LinkedHashSet<>();
+
+  /**
+   * Connections without allocations, in the order they became idle. The head is always the
+   * connection that has been idle the longest. 空闲连接队列，队头是最早空闲的连接
+   */
+  private final Set<RealConnection> idleConnections = new LinkedHashSet<>();
+
+  /**
+   * The same idle connections, grouped by the keep alive duration of their address's policy. Each
+   * group is in the order its connections became idle, so the head of each group is the next of
+   * its connections to expire. 按保活时长分组，每组的队头就是该组最先过期的连接
+   */
+  private final Map<Long, Set<RealConnection>> idleConnectionsByKeepAlive = new LinkedHashMap<>();
+
+  /**
+   * Idle HTTP/1 connections in the order they were last found healthy. The head is the next to
+   * check. 空闲HTTP/1连接按上次健康检查的时间排列，队头最先需要检查
+   */
+  private final Set<RealConnection> healthCheckQueue = new LinkedHashSet<>();
+
+  /**
+   * Idle multiplexed connections that are pinged to keep them alive and to find the dead ones.
+   * 空闲的HTTP/2连接，定期PING保活并发现失效连接
+   */
+  private final Set<RealConnection> keepAliveConnections = new LinkedHashSet<>();
+
+  /**
+   * The same connections as {@link #connections}, indexed by their address so that {@link #get}
+   * only considers connections that can carry the requested address.
+   */
+  private final Map<Address, AddressConnections> addressConnections = new HashMap<>();
+
+  /** Policies keyed by host name or wildcard pattern like {@code *.example.com}. */
+  private final Map<String, HostPolicy> hostPolicies = new LinkedHashMap<>();
+
+  /** Addresses with more idle connections than their policy permits. Drained by cleanup. */
+  private final Set<AddressConnections> overIdleLimit = new LinkedHashSet<>();
+
+  /** Addresses to keep warm connections to. 预热的地址 */
+  private final Map<Address, WarmUp> warmUps = new LinkedHashMap<>();
+
+  /** Allocations enqueued here were garbage collected without being released. */
+  final ReferenceQueue<StreamAllocation> leakedAllocations = new ReferenceQueue<>();
+
   //维护着一个RouteDatabase，它用来记录连接失败的Route的黑名单，当连接失败的时候就会把失败的线路加进去（本文不讨论）
   final RouteDatabase routeDatabase = new RouteDatabase();
   boolean cleanupRunning;
+  private boolean virtualThreads;
 
   /**
    * Create a new connection pool with tuning parameters appropriate for a single-user application.
@@ -106,15 +184,13 @@ public final class ConnectionPool {
     if (keepAliveDuration <= 0) {
       throw new IllegalArgumentException("keepAliveDuration <= 0: " + keepAliveDuration);
     }
+    this.defaultPolicy = new HostPolicy(Integer.MAX_VALUE, keepAliveDurationNs,
+        TimeUnit.NANOSECONDS, Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
   }
 
   /** Returns the number of idle connections in the pool. */
   public synchronized int getIdleConnectionCount() {
-    int total = 0;
-    for (RealConnection connection : connections) {
-      if (connection.allocations.isEmpty()) total++;
-    }
-    return total;
+    return idleConnections.size();
   }
 
   /**
@@ -141,30 +217,544 @@ public final class ConnectionPool {
     return connections.size() - getMultiplexedConnectionCount();
   }
 
+  /**
+   * Configure this pool to run its cleanup on a virtual thread. The pool may be shared by clients
+   * with different {@linkplain OkHttpClient#setVirtualThreads thread settings}, so its cleanup
+   * thread is configured here rather than by any one of them. Takes effect the next time cleanup
+   * starts. Ignored on runtimes without virtual threads.
+   */
+  public synchronized void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  public synchronized boolean getVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Applies {@code policy} to connections to {@code hostPattern}, which is either a host name like
+   * {@code api.example.com} or a wildcard like {@code *.example.com} that matches exactly one
+   * leading label. An exact host policy takes precedence over a wildcard. Pass a null policy to
+   * revert matching hosts to this pool's defaults.
+   *
+   * <p>The pool-wide idle connection limit still applies on top of per-host limits.
+   */
+  public synchronized void setHostPolicy(String hostPattern, HostPolicy policy) {
+    if (hostPattern == null) throw new IllegalArgumentException("hostPattern == null");
+    if (hostPattern.indexOf('*') > 0 || hostPattern.lastIndexOf('*') > 0
+        || (hostPattern.startsWith("*") && !hostPattern.startsWith("*."))) {
+      throw new IllegalArgumentException("unexpected host pattern: " + hostPattern);
+    }
+
+    if (policy != null) {
+      hostPolicies.put(hostPattern, policy);
+    } else {
+      hostPolicies.remove(hostPattern);
+    }
+
+    // Re-resolve policies and regroup idle connections by their new keep alive durations.
+    for (Iterator<AddressConnections> i = addressConnections.values().iterator(); i.hasNext(); ) {
+      AddressConnections entry = i.next();
+      entry.policy = policyFor(entry.address.url().host());
+      if (entry.idleCount > entry.policy.maxIdleConnections) overIdleLimit.add(entry);
+      if (entry.connections.isEmpty() && !isRetained(entry)) i.remove();
+    }
+    idleConnectionsByKeepAlive.clear();
+    for (RealConnection connection : idleConnections) {
+      idleConnectionsByKeepAlive(addressConnections(connection).policy).add(connection);
+    }
+    notifyAll(); // Awake the cleanup thread: limits or keep alive durations may have shrunk.
+  }
+
+  /** Returns a snapshot of the connections and usage of each address in this pool. */
+  public synchronized List<AddressStats> getAddressStats() {
+    List<AddressStats> result = new ArrayList<>(addressConnections.size());
+    for (AddressConnections entry : addressConnections.values()) {
+      result.add(new AddressStats(entry.address, entry.connections.size(), entry.idleCount,
+          entry.connectCount, entry.reuseCount, entry.evictionCount, entry.roundTripNanos));
+    }
+    return Collections.unmodifiableList(result);
+  }
+
   /** Returns a recycled connection to {@code address}, or null if no such connection exists. */
   RealConnection get(Address address, StreamAllocation streamAllocation) {
     assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
+    AddressConnections entry = addressConnections.get(address);
+    if (entry == null) return null;
+
+    RealConnection pipelined = null;
+    for (RealConnection connection : entry.connections) {
       // TODO(jwilson): this is awkward. We're already holding a lock on 'this', and
       //     connection.allocationLimit() may also lock the FramedConnection.
       if (connection.allocations.size() < connection.allocationLimit()
-          && address.equals(connection.route().address)
-          && !connection.noNewStreams) {
+          && !connection.noNewStreams && !connection.healthCheckRunning) {
         streamAllocation.acquire(connection);
+        entry.reuseCount++;
+        if (removeIdle(entry, connection)) {
+          refillWarmUp(address);
+        }
+
+        return connection;
+      }
 
+      // Failing a free connection, prefer the shortest pipeline.
+      if (streamAllocation.isPipelinable() && canPipeline(entry, connection)
+          && (pipelined == null || connection.allocations.size() < pipelined.allocations.size())) {
+        pipelined = connection;
+      }
+    }
+
+    if (pipelined != null) {
+      streamAllocation.acquire(pipelined);
+      entry.reuseCount++;
+    }
+    return pipelined;
+  }
+
+  /**
+   * Returns true if a pipelinable request may be written on {@code connection} behind the requests
+   * it is already carrying.
+   */
+  private boolean canPipeline(AddressConnections entry, RealConnection connection) {
+    if (connection.pipeline == null || connection.isMultiplexed()) return false;
+    if (connection.allocations.size() >= entry.policy.maxPipelinedRequests) return false;
+    if (entry.pipeliningFailed
+        && System.nanoTime() - entry.pipeliningFailedAtNanos < PIPELINING_RETRY_DELAY_NANOS) {
+      return false;
+    }
+
+    // Only pipeline behind a completed exchange: it shows the server keeps connections alive.
+    if (connection.noNewStreams || connection.healthCheckRunning || connection.successCount == 0) {
+      return false;
+    }
+
+    // Every request on the connection must be pipelinable too. Never queue behind a request body.
+    for (int i = 0, size = connection.allocations.size(); i < size; i++) {
+      StreamAllocation allocation = connection.allocations.get(i).get();
+      if (allocation == null || !allocation.isPipelinable()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records that a pipelined exchange with {@code address} failed. The address falls back to one
+   * request per connection for a while.
+   */
+  synchronized void pipeliningFailed(Address address) {
+    AddressConnections entry = addressConnections.get(address);
+    if (entry == null) return;
+    entry.pipeliningFailed = true;
+    entry.pipeliningFailedAtNanos = System.nanoTime();
+  }
+
+  /**
+   * Returns a multiplexed connection to another host that can carry {@code address} over {@code
+   * route}, or null if no such connection exists. Only HTTP/2 connections whose certificate
+   * covers {@code address}'s host and whose IP address matches {@code route} qualify. 跨域名复用连接
+   */
+  RealConnection get(Address address, StreamAllocation streamAllocation, Route route) {
+    assert (Thread.holdsLock(this));
+    for (RealConnection connection : connections) {
+      if (connection.isMultiplexed() && connection.isEligible(address, route)) {
+        streamAllocation.acquire(connection);
+        AddressConnections entry = addressConnections(connection);
+        entry.reuseCount++;
+        if (removeIdle(entry, connection)) {
+          refillWarmUp(entry.address);
+        }
         return connection;
       }
     }
     return null;
   }
+
+  /**
+   * Returns true if a new connection to {@code address} would exceed its policy's connection
+   * limit. Callers should wait on this pool for a connection to be released or removed.
+   */
+  boolean connectionLimitReached(Address address) {
+    assert (Thread.holdsLock(this));
+    AddressConnections entry = addressConnections.get(address);
+    return entry != null
+        && entry.connections.size() + entry.connectingCount() + entry.reservedConnects
+        >= entry.policy.maxConnections;
+  }
+
+  /**
+   * Returns true if a call should wait for other calls' connects to {@code address} before making
+   * its own. That's the case while a connection that may turn out to be multiplexed is being
+   * established, since every waiting call can then share it; and while the address is at its
+   * policy's concurrent connect limit. 同一地址只建立一个可能复用的连接，其他调用等待共享
+   */
+  boolean shouldAwaitConnect(Address address) {
+    assert (Thread.holdsLock(this));
+    AddressConnections entry = addressConnections.get(address);
+    if (entry == null || entry.connectsInFlight == 0) return false;
+    return entry.connectsInFlight >= entry.policy.maxConcurrentConnects || entry.mayMultiplex();
+  }
+
+  /** Records that a call started connecting to {@code address}. */
+  void connectStarted(Address address) {
+    assert (Thread.holdsLock(this));
+    addressConnections(address).connectsInFlight++;
+  }
+
+  /**
+   * Reserves up to {@code count} concurrent connects to {@code address} for a connection race,
+   * within the address's connection and concurrent connect limits. Returns the number reserved,
+   * which is at least 1: a call that has stopped waiting for others connects regardless. Each
+   * reservation counts as a connect in flight until {@link #raceFinished}.
+   */
+  int reserveConnects(Address address, int count) {
+    assert (Thread.holdsLock(this));
+    AddressConnections entry = addressConnections(address);
+    int headroom = Math.min(
+        entry.policy.maxConnections - entry.connections.size() - entry.connectingCount()
+            - entry.reservedConnects,
+        entry.policy.maxConcurrentConnects - entry.connectsInFlight);
+    int result = Math.max(1, Math.min(count, headroom));
+    entry.connectsInFlight += result;
+    entry.reservedConnects += result;
+    return result;
+  }
+
+  /**
+   * Releases the {@code reserved} connects of a race to {@code address} that yielded {@code
+   * winner}, or null if every attempt failed.
+   */
+  void raceFinished(Address address, int reserved, RealConnection winner) {
+    assert (Thread.holdsLock(this));
+    AddressConnections entry = addressConnections.get(address);
+    entry.reservedConnects -= reserved;
+    entry.connectsInFlight -= reserved - 1; // connectFinished() releases the last one.
+    connectFinished(address, winner);
+  }
+
+  /**
+   * Records that a call finished connecting to {@code address}, yielding {@code connection} or
+   * null if the connect failed. Calls waiting for the connect are woken up.
+   */
+  void connectFinished(Address address, RealConnection connection) {
+    assert (Thread.holdsLock(this));
+    AddressConnections entry = addressConnections.get(address);
+    entry.connectsInFlight--;
+    if (connection != null) entry.http1Only = !connection.isMultiplexed();
+    if (entry.connections.isEmpty() && !isRetained(entry)) {
+      addressConnections.remove(address);
+    }
+    notifyAll(); // Awake calls waiting to share this connection or to start their own.
+  }
+
   //向连接池中put新的socket时，回收函数会被主动调用，线程池就会执行cleanupRunnable，如下
   void put(RealConnection connection) {
     assert (Thread.holdsLock(this));
     if (!cleanupRunning) {
       cleanupRunning = true;
-      executor.execute(cleanupRunnable);
+      if (virtualThreads) {
+        virtualExecutor.execute(cleanupRunnable);
+      } else {
+        executor.execute(cleanupRunnable);
+      }
     }
     connections.add(connection);
+    connection.pool = this;
+
+    AddressConnections entry = addressConnections(connection);
+    entry.connections.add(connection);
+    entry.connectCount++;
+    if (entry.policy.maxPipelinedRequests > 1 && connection.pipeline == null) {
+      // Every exchange on the connection must take its turn, including the first.
+      connection.pipeline = new Http1Pipeline();
+    }
+  }
+
+  /** Returns the entry for {@code connection}'s address, creating it if necessary. */
+  private AddressConnections addressConnections(RealConnection connection) {
+    return addressConnections(connection.route().address);
+  }
+
+  private AddressConnections addressConnections(Address address) {
+    AddressConnections entry = addressConnections.get(address);
+    if (entry == null) {
+      entry = new AddressConnections(address, policyFor(address.url().host()));
+      addressConnections.put(address, entry);
+    }
+    return entry;
+  }
+
+  /** Returns the policy for {@code host}: an exact match, then a wildcard, then the default. */
+  private HostPolicy policyFor(String host) {
+    if (hostPolicies.isEmpty()) return defaultPolicy;
+
+    HostPolicy result = hostPolicies.get(host);
+    if (result != null) return result;
+
+    // a.example.com -> search for wildcard pattern *.example.com
+    int indexOfFirstDot = host.indexOf('.');
+    if (indexOfFirstDot != host.lastIndexOf('.')) {
+      result = hostPolicies.get("*." + host.substring(indexOfFirstDot + 1));
+      if (result != null) return result;
+    }
+    return defaultPolicy;
+  }
+
+  /** Keep entries that have settings or statistics worth more than the memory they take. */
+  private boolean isRetained(AddressConnections entry) {
+    return entry.policy != defaultPolicy || warmUps.containsKey(entry.address)
+        || entry.connectsInFlight > 0;
+  }
+
+  /** Records that {@code connection}, which is in this pool, has no allocations. */
+  private void addIdle(AddressConnections entry, RealConnection connection) {
+    idleConnections.add(connection);
+    idleConnectionsByKeepAlive(entry.policy).add(connection);
+    if (!connection.isMultiplexed()) {
+      // The connection was just used or just connected: it is healthy.
+      connection.healthyAtNanos = connection.idleAtNanos;
+      connection.healthChecked = true;
+      healthCheckQueue.add(connection);
+    } else if (connection.pingIntervalNanos() > 0) {
+      connection.keepAliveAtNanos = connection.idleAtNanos + connection.pingIntervalNanos();
+      keepAliveConnections.add(connection);
+    }
+    entry.idleCount++;
+    if (entry.idleCount > entry.policy.maxIdleConnections) overIdleLimit.add(entry);
+  }
+
+  /** Returns true if {@code connection} was idle and is no longer. */
+  private boolean removeIdle(AddressConnections entry, RealConnection connection) {
+    if (!idleConnections.remove(connection)) return false;
+    healthCheckQueue.remove(connection);
+    keepAliveConnections.remove(connection);
+    connection.keepAlivePing = null;
+
+    Long keepAliveDurationNs = entry.policy.keepAliveDurationNs;
+    Set<RealConnection> group = idleConnectionsByKeepAlive.get(keepAliveDurationNs);
+    group.remove(connection);
+    if (group.isEmpty()) idleConnectionsByKeepAlive.remove(keepAliveDurationNs);
+    entry.idleCount--;
+    return true;
+  }
+
+  private Set<RealConnection> idleConnectionsByKeepAlive(HostPolicy policy) {
+    Set<RealConnection> result = idleConnectionsByKeepAlive.get(policy.keepAliveDurationNs);
+    if (result == null) {
+      result = new LinkedHashSet<>();
+      idleConnectionsByKeepAlive.put(policy.keepAliveDurationNs, result);
+    }
+    return result;
+  }
+
+  /** Removes {@code connection} from the pool and its address index. */
+  private void remove(RealConnection connection) {
+    assert (Thread.holdsLock(this));
+    if (!connections.remove(connection)) return;
+
+    Address address = connection.route().address;
+    AddressConnections entry = addressConnections.get(address);
+    removeIdle(entry, connection);
+    entry.connections.remove(connection);
+    if (entry.connections.isEmpty() && !isRetained(entry)) {
+      addressConnections.remove(address);
+    }
+    notifyAll(); // Awake callers waiting for this address to drop below its connection limit.
+    refillWarmUp(address);
+  }
+
+  /**
+   * Takes {@code connection}, whose peer sent GOAWAY, out of service. An idle connection is closed
+   * right away. A busy one closes once its accepted streams complete, and a replacement is opened
+   * in the background meanwhile so that calls need not wait for a connect when it's gone. Calls
+   * that look for a connection in the meantime wait to share the replacement.
+   */
+  void connectionDraining(final RealConnection connection) {
+    RealConnection connectionToClose = null;
+    synchronized (this) {
+      if (!connections.contains(connection) || connection.noNewStreams) return;
+      connection.noNewStreams = true;
+
+      if (connection.allocations.isEmpty()) {
+        remove(connection);
+        connectionToClose = connection;
+      } else if (needsReplacement(connection)) {
+        final Address address = connection.route().address;
+        connectStarted(address);
+        Runnable connectRunnable = new NamedRunnable("OkHttp ConnectionPool replace %s",
+            address.url().host()) {
+          @Override protected void execute() {
+            connectReplacement(connection);
+          }
+        };
+        if (connection.virtualThreads()) {
+          virtualExecutor.execute(connectRunnable);
+        } else {
+          executor.execute(connectRunnable);
+        }
+      }
+      notifyAll(); // Awake callers waiting for a stream on this connection.
+    }
+    if (connectionToClose != null) closeQuietly(connectionToClose.socket());
+  }
+
+  /**
+   * Returns true if no other connection to the address of the draining {@code connection} can
+   * take its streams and none is being established.
+   */
+  private boolean needsReplacement(RealConnection connection) {
+    AddressConnections entry = addressConnections(connection);
+    if (entry.connectsInFlight > 0) return false;
+    for (RealConnection other : entry.connections) {
+      if (other.isMultiplexed() && !other.noNewStreams) return false;
+    }
+    return true;
+  }
+
+  /** Opens a connection to replace {@code draining} and adds it to this pool as an idle one. */
+  private void connectReplacement(RealConnection draining) {
+    Address address = draining.route().address;
+    RealConnection connection = null;
+    try {
+      long connectStartNanos = System.nanoTime();
+      connection = draining.connectReplacement();
+      routeDatabase.connected(connection.route(), System.nanoTime() - connectStartNanos);
+    } catch (RouteException e) {
+      Internal.logger.log(Level.INFO, "Failed to replace a connection to " + address.url(),
+          e.getLastConnectException());
+    } finally {
+      // Always finish the connect, or calls to this address would wait for it forever.
+      synchronized (this) {
+        if (connection != null) {
+          put(connection);
+          connection.idleAtNanos = System.nanoTime();
+          addIdle(addressConnections(connection), connection);
+        }
+        connectFinished(address, connection);
+      }
+    }
+  }
+
+  /** Removes {@code connection} from the pool and adds it to {@code evictedConnections}. */
+  private void evict(RealConnection connection, List<RealConnection> evictedConnections) {
+    AddressConnections entry = addressConnections.get(connection.route().address);
+    entry.evictionCount++;
+    remove(connection);
+    evictedConnections.add(connection);
+  }
+
+  /**
+   * Keeps at least {@code minIdleConnections} idle connections to {@code address}, connecting
+   * with {@code client}'s settings. Connections are opened in the background on this pool's
+   * executor. Pass 0 to stop warming {@code address}.
+   */
+  synchronized void warmUp(Address address, int minIdleConnections, OkHttpClient client) {
+    WarmUp previous = warmUps.get(address);
+    int warmTotal = minIdleConnections - (previous != null ? previous.minIdleConnections : 0);
+    for (WarmUp warmUp : warmUps.values()) {
+      warmTotal += warmUp.minIdleConnections;
+    }
+    if (warmTotal > maxIdleConnections) {
+      throw new IllegalArgumentException("warm connections exceed maxIdleConnections: "
+          + warmTotal + " > " + maxIdleConnections);
+    }
+
+    if (minIdleConnections == 0) {
+      warmUps.remove(address);
+      return;
+    }
+    WarmUp warmUp = new WarmUp(address, minIdleConnections, client);
+    if (previous != null) warmUp.connecting = previous.connecting;
+    warmUps.put(address, warmUp);
+    refillWarmUp(address);
+  }
+
+  /** Starts connecting to {@code address} if it is warmed and has too few idle connections. */
+  private void refillWarmUp(Address address) {
+    assert (Thread.holdsLock(this));
+    final WarmUp warmUp = warmUps.get(address);
+    if (warmUp == null) return;
+
+    AddressConnections entry = addressConnections(address);
+    for (RealConnection connection : entry.connections) {
+      if (connection.isMultiplexed() && !connection.noNewStreams) {
+        return; // One multiplexed connection is enough.
+      }
+    }
+
+    // Don't warm more connections than the address's policy would keep.
+    int target = Math.min(warmUp.minIdleConnections, entry.policy.maxIdleConnections);
+    target = Math.min(target, entry.policy.maxConnections - entry.connections.size()
+        + entry.idleCount);
+
+    boolean virtualThreads = warmUp.client.getVirtualThreads();
+    for (int i = entry.idleCount + warmUp.connecting; i < target; i++) {
+      warmUp.connecting++;
+      Runnable connectRunnable = new NamedRunnable("OkHttp ConnectionPool warm up %s",
+          address.url().host()) {
+        @Override protected void execute() {
+          connectWarm(warmUp);
+        }
+      };
+      try {
+        if (virtualThreads) {
+          virtualExecutor.execute(connectRunnable);
+        } else {
+          executor.execute(connectRunnable);
+        }
+      } catch (RejectedExecutionException e) {
+        warmUp.connecting--;
+        Internal.logger.log(Level.INFO, "Failed to warm up a connection to " + address.url(), e);
+        return;
+      }
+    }
+  }
+
+  /** Opens a connection for {@code warmUp} and adds it to this pool as an idle connection. */
+  private void connectWarm(WarmUp warmUp) {
+    RealConnection connection = null;
+    boolean close = false;
+    try {
+      connection = newConnection(warmUp.address, warmUp.client);
+    } catch (IOException e) {
+      Internal.logger.log(Level.INFO, "Failed to warm up a connection to "
+          + warmUp.address.url(), e);
+    } finally {
+      // Always finish the connect, or the address would stay under-filled for good.
+      synchronized (this) {
+        warmUp.connecting--;
+        if (connection != null) {
+          if (warmUps.get(warmUp.address) == warmUp) {
+            put(connection);
+            connection.idleAtNanos = System.nanoTime();
+            addIdle(addressConnections(connection), connection);
+            notifyAll(); // Awake the cleanup thread: we may exceed the idle connection limit.
+          } else {
+            close = true; // Warming was stopped while we were connecting.
+          }
+        }
+      }
+    }
+    if (close) closeQuietly(connection.socket());
+  }
+
+  /** Connects to {@code address} over the first route that works. */
+  private RealConnection newConnection(Address address, OkHttpClient client) throws IOException {
+    RouteSelector routeSelector = new RouteSelector(address, routeDatabase);
+    while (true) {
+      Route route = routeSelector.next();
+      RealConnection connection = new RealConnection(
+          route, client.getVirtualThreads(), client.getPingInterval());
+      try {
+        long connectStartNanos = System.nanoTime();
+        connection.connect(client.getConnectTimeout(), client.getReadTimeout(),
+            client.getWriteTimeout(), address.connectionSpecs(),
+            client.getRetryOnConnectionFailure());
+        routeDatabase.connected(route, System.nanoTime() - connectStartNanos);
+        return connection;
+      } catch (RouteException e) {
+        routeSelector.connectFailed(route, e.getLastConnectException());
+        if (!routeSelector.hasNext()) throw e.getLastConnectException();
+      }
+    }
   }
 
   /**
@@ -173,10 +763,13 @@ public final class ConnectionPool {
    */
   boolean connectionBecameIdle(RealConnection connection) {
     assert (Thread.holdsLock(this));
-    if (connection.noNewStreams || maxIdleConnections == 0) {
-      connections.remove(connection);
+    AddressConnections entry = addressConnections(connection);
+    if (connection.noNewStreams || maxIdleConnections == 0
+        || entry.policy.maxIdleConnections == 0) {
+      remove(connection);
       return true;
     } else {
+      addIdle(entry, connection);
       notifyAll(); // Awake the cleanup thread: we may have exceeded the idle connection limit.
       return false;
     }
@@ -186,13 +779,9 @@ public final class ConnectionPool {
   public void evictAll() {
     List<RealConnection> evictedConnections = new ArrayList<>();
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
-        if (connection.allocations.isEmpty()) {
-          connection.noNewStreams = true;
-          evictedConnections.add(connection);
-          i.remove();
-        }
+      for (RealConnection connection : new ArrayList<>(idleConnections)) {
+        connection.noNewStreams = true;
+        evict(connection, evictedConnections);
       }
     }
 
@@ -202,125 +791,448 @@ public final class ConnectionPool {
   }
 
   /**
-   * Performs maintenance on this pool, evicting the connection that has been idle the longest if
-   * either it has exceeded the keep alive limit or the idle connections limit.
+   * Performs maintenance on this pool, evicting every idle connection that has exceeded its
+   * address's keep alive duration, the longest-idle connections of addresses over their idle
+   * limits and of the pool over its idle limit, and connections whose allocations were leaked.
+   *
+   * <p>Idle connections are grouped by keep alive duration and kept in the order they became
+   * idle, so this only visits the connections it evicts plus the next to expire in each group.
+   * Leaked allocations are discovered through a reference queue rather than by scanning
+   * connections that are in use.
+   *
+   * <p>This also checks the health of idle HTTP/1 connections whose last check is older than {@link
+   * RealConnection#HEALTH_CHECK_INTERVAL_NANOS}, so that calls can reuse them without probing the
+   * socket themselves. Unhealthy connections are evicted.
    *
    * <p>Returns the duration in nanos to sleep until the next scheduled call to this method. Returns
    * -1 if no further cleanups are required.
-   * cleanup使用了类似于GC的标记-清除算法，也就是首先标记出最不活跃的连接(我们可以叫做泄漏连接，或者空闲连接)，接着进行清除，流程如下:
-   *    1.遍历Deque中所有的RealConnection，标记泄漏的连接
-       2.如果被标记的连接满足(空闲socket连接超过5个&&keepalive时间大于5分钟)，就将此泄漏连接，也就是从Deque中移除，并关闭连接，返回0，也就是将要执行wait(0)，提醒立刻再次扫描
-       3.如果(目前还可以塞得下5个连接，但是有可能泄漏的连接(即空闲时间即将达到5分钟))，就返回此连接即将到期的时间，供下次清理
-      4. 如果(全部都是活跃的连接)，就返回默认的keep-alive时间，也就是5分钟后再执行清理
-      5. 如果(没有任何连接)，就返回-1,跳出清理的死循环
-     6. 再次注意：这里的“并发”==(“空闲”＋“活跃”)==5，而不是说并发连接就一定是活跃的连接
-
-
+   * 空闲连接按照变为空闲的先后顺序排列，过期的连接总是位于队头，所以一次清理就能批量移除所有过期的连接，
+   * 而无需遍历整个连接池
    */
   long cleanup(long now) {
-    int inUseConnectionCount = 0;
-    int idleConnectionCount = 0;
-    RealConnection longestIdleConnection = null;
-    long longestIdleDurationNs = Long.MIN_VALUE;
+    List<RealConnection> evictedConnections = new ArrayList<>();
+    List<RealConnection> healthCheckConnections = new ArrayList<>();
+    List<RealConnection> pingConnections = new ArrayList<>();
+    long waitNanos = Long.MAX_VALUE;
 
-    // Find either a connection to evict, or the time that the next eviction is due.
-    //遍历`Deque`中所有的`RealConnection`，标记泄漏的连接
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
+      // Close connections whose last allocation was leaked.
+      pruneLeakedAllocations(now, evictedConnections);
+
+      // Evict from the head of each keep alive group while it is expired.
+      for (Map.Entry<Long, Set<RealConnection>> group
+          : new ArrayList<>(idleConnectionsByKeepAlive.entrySet())) {
+        long groupKeepAliveNs = group.getKey();
+        Set<RealConnection> groupConnections = group.getValue();
+        while (!groupConnections.isEmpty()) {
+          RealConnection eldest = groupConnections.iterator().next();
+          long idleDurationNs = now - eldest.idleAtNanos;
+          if (idleDurationNs < groupKeepAliveNs) {
+            //返回队头连接即将到期的时间，供下次清理
+            // A connection will be ready to evict soon.
+            waitNanos = Math.min(waitNanos, groupKeepAliveNs - idleDurationNs);
+            break;
+          }
+          evict(eldest, evictedConnections);
+        }
+      }
 
-        // If the connection is in use, keep searching.
-        // 查询此连接内部StreamAllocation的引用数量
-        if (pruneAndGetAllocationCount(connection, now) > 0) {
-          inUseConnectionCount++;
-          continue;
+      // Evict the longest-idle connections of addresses over their own idle limits.
+      for (AddressConnections entry : overIdleLimit) {
+        while (entry.idleCount > entry.policy.maxIdleConnections) {
+          evict(entry.longestIdleConnection(), evictedConnections);
         }
+      }
+      overIdleLimit.clear();
 
-        idleConnectionCount++;
+      // Evict the longest-idle connections while the pool is over its idle limit.
+      while (idleConnections.size() > maxIdleConnections) {
+        evict(idleConnections.iterator().next(), evictedConnections);
+      }
 
-        // If the connection is ready to be evicted, we're done.
-        //选择排序法，标记出空闲连接
-        long idleDurationNs = now - connection.idleAtNanos;
-        if (idleDurationNs > longestIdleDurationNs) {
-          longestIdleDurationNs = idleDurationNs;
-          longestIdleConnection = connection;
+      // Take the idle connections that are due for a health check.
+      for (Iterator<RealConnection> i = healthCheckQueue.iterator(); i.hasNext(); ) {
+        RealConnection connection = i.next();
+        long sinceHealthyNs = now - connection.healthyAtNanos;
+        if (sinceHealthyNs < RealConnection.HEALTH_CHECK_INTERVAL_NANOS) {
+          waitNanos = Math.min(waitNanos,
+              RealConnection.HEALTH_CHECK_INTERVAL_NANOS - sinceHealthyNs);
+          break;
         }
+        i.remove();
+        connection.healthCheckRunning = true;
+        healthCheckConnections.add(connection);
       }
 
-      if (longestIdleDurationNs >= this.keepAliveDurationNs
-          || idleConnectionCount > this.maxIdleConnections) {
-        // We've found a connection to evict. Remove it from the list, then close it below (outside
-        // of the synchronized block).
-        //如果(`空闲socket连接超过5个`
-        //且`keepalive时间大于5分钟`)
-        //就将此泄漏连接从`Deque`中移除
-        connections.remove(longestIdleConnection);
-      } else if (idleConnectionCount > 0) {
-        //返回此连接即将到期的时间，供下次清理
-        //这里依据是在上文`connectionBecameIdle`中设定的计时
-        // A connection will be ready to evict soon.
-        return keepAliveDurationNs - longestIdleDurationNs;
-      } else if (inUseConnectionCount > 0) {
+      // Take the idle multiplexed connections that are due for a keepalive ping. Evict those that
+      // didn't answer their last ping within the ping interval.
+      List<RealConnection> deadConnections = new ArrayList<>();
+      for (RealConnection connection : keepAliveConnections) {
+        Ping ping = connection.keepAlivePing;
+        if (ping != null) {
+          long roundTripNanos = ping.roundTripTimeIfReceived();
+          if (roundTripNanos >= 0) {
+            addressConnections(connection).roundTripReceived(roundTripNanos);
+            connection.keepAlivePing = null; // The next ping is due when this one's wait ends.
+          } else if (roundTripNanos == -1 || now >= connection.keepAliveAtNanos) {
+            deadConnections.add(connection);
+            continue;
+          }
+        }
+        long untilDueNs = connection.keepAliveAtNanos - now;
+        if (untilDueNs > 0) {
+          waitNanos = Math.min(waitNanos, untilDueNs);
+        } else {
+          pingConnections.add(connection);
+        }
+      }
+      for (RealConnection connection : deadConnections) {
+        connection.noNewStreams = true;
+        evict(connection, evictedConnections);
+      }
+
+      if (!healthCheckConnections.isEmpty()) {
+        // Run again as soon as the checks below are done.
+        waitNanos = 0L;
+      } else if (waitNanos != Long.MAX_VALUE && !idleConnections.isEmpty()) {
+        // Sleep until the next idle connection expires or is due for a health check.
+      } else if (!connections.isEmpty()) {
         //全部都是活跃的连接，5分钟后再次清理
         // All connections are in use. It'll be at least the keep alive duration 'til we run again.
-        return keepAliveDurationNs;
+        waitNanos = keepAliveDurationNs;
       } else {
         // No connections, idle or in use.
         //没有任何连接，跳出循环
         cleanupRunning = false;
-        return -1;
+        waitNanos = -1;
       }
     }
 
-    closeQuietly(longestIdleConnection.socket());
+    // Close evicted connections outside of the synchronized block.
+    for (RealConnection connection : evictedConnections) {
+      closeQuietly(connection.socket());
+    }
 
-    // Cleanup again immediately.
-    //关闭连接，返回`0`，也就是立刻再次清理
-    return 0;
+    if (!healthCheckConnections.isEmpty()) {
+      checkHealth(healthCheckConnections);
+    }
+    if (!pingConnections.isEmpty()) {
+      waitNanos = Math.min(waitNanos, ping(pingConnections));
+    }
+    return waitNanos;
   }
 
   /**
-   * Prunes any leaked allocations and then returns the number of remaining live allocations on
-   * {@code connection}. Allocations are leaked if the connection is tracking them but the
-   * application code has abandoned them. Leak detection is imprecise and relies on garbage
-   * collection.
-   * 如何标记并找到最不活跃的连接呢，这里使用了pruneAndGetAllocationCount的方法，它主要依据弱引用是否为null而判断这个连接是否泄漏
-   * //类似于引用计数法，如果引用全部为空，返回立刻清理
-   *
-   * 1.遍历RealConnection连接中的StreamAllocationList，它维护着一个弱应用列表
-  2. 查看此StreamAllocation是否为空(它是在线程池的put/remove手动控制的)，如果为空，说明已经没有代码引用这个对象了，需要在List中删除
-  3. 遍历结束，如果List中维护的StreamAllocation删空了，就返回0，表示这个连接已经没有代码引用了，是泄漏的连接;否则返回非0的值，表示这个仍然被引用，是活跃的连接。
+   * Probes {@code idleConnections}, which {@link #get} won't hand out while they're being checked.
+   * The probe blocks for up to a millisecond per connection, so it is done on the cleanup thread
+   * rather than by the calls that reuse these connections. 在清理线程中探测空闲连接
+   */
+  private void checkHealth(List<RealConnection> idleConnections) {
+    List<RealConnection> evictedConnections = new ArrayList<>();
+    for (RealConnection connection : idleConnections) {
+      boolean healthy = connection.isHealthy(true);
+      synchronized (this) {
+        connection.healthCheckRunning = false;
+        if (!this.idleConnections.contains(connection)) continue; // Evicted while we checked.
+        if (healthy) {
+          connection.healthyAtNanos = System.nanoTime();
+          healthCheckQueue.add(connection);
+        } else {
+          connection.noNewStreams = true;
+          evict(connection, evictedConnections);
+        }
+      }
+    }
 
+    for (RealConnection connection : evictedConnections) {
+      closeQuietly(connection.socket());
+    }
+  }
+
+  /**
+   * Sends keepalive pings on {@code idleConnections} and returns how long to wait for their
+   * responses. Connections that can't be pinged are evicted. Like health checks this does I/O, so
+   * it is done on the cleanup thread without holding the pool's lock.
    */
-  private int pruneAndGetAllocationCount(RealConnection connection, long now) {
-    //弱引用列表
-    List<Reference<StreamAllocation>> references = connection.allocations;
-    //遍历弱引用列表
-    for (int i = 0; i < references.size(); ) {
-
-      Reference<StreamAllocation> reference = references.get(i);
-//如果正在被使用，跳过，接着循环
-      //是否置空是在上文`connectionBecameIdle`的`release`控制的
-      if (reference.get() != null) {
-        i++;
-        continue;
+  private long ping(List<RealConnection> idleConnections) {
+    List<RealConnection> evictedConnections = new ArrayList<>();
+    long waitNanos = Long.MAX_VALUE;
+    for (RealConnection connection : idleConnections) {
+      Ping ping;
+      try {
+        ping = connection.framedConnection.ping();
+      } catch (IOException e) {
+        ping = null;
       }
+      synchronized (this) {
+        if (!keepAliveConnections.contains(connection)) continue; // Reused or evicted meanwhile.
+        if (ping != null) {
+          connection.keepAlivePing = ping;
+          connection.keepAliveAtNanos = System.nanoTime() + connection.pingIntervalNanos();
+          waitNanos = Math.min(waitNanos, connection.pingIntervalNanos());
+        } else {
+          connection.noNewStreams = true;
+          evict(connection, evictedConnections);
+        }
+      }
+    }
+
+    for (RealConnection connection : evictedConnections) {
+      closeQuietly(connection.socket());
+    }
+    return waitNanos;
+  }
+
+  /**
+   * Prunes allocations that the garbage collector found abandoned. Allocations are leaked if the
+   * connection is tracking them but the application code has abandoned them. Leak detection is
+   * imprecise and relies on garbage collection. Connections left without allocations are removed
+   * from the pool and added to {@code evictedConnections}.
+   * 通过弱引用队列找到被回收（泄漏）的StreamAllocation，只处理泄漏的连接，不再遍历全部连接
+   */
+  private void pruneLeakedAllocations(long now, List<RealConnection> evictedConnections) {
+    assert (Thread.holdsLock(this));
+    for (StreamAllocationReference reference;
+        (reference = (StreamAllocationReference) leakedAllocations.poll()) != null; ) {
+      RealConnection connection = reference.connection;
+
+      // The allocation was released before it was collected. Nothing leaked.
+      if (!connection.allocations.remove(reference)) continue;
 
       // We've discovered a leaked allocation. This is an application bug.
       Internal.logger.warning("A connection to " + connection.route().address().url()
           + " was leaked. Did you forget to close a response body?");
-      //否则移除引用
-      references.remove(i);
       connection.noNewStreams = true;
 
       // If this was the last allocation, the connection is eligible for immediate eviction.
-      //如果所有分配的流均没了，标记为已经距离现在空闲了5分钟
-      if (references.isEmpty()) {
+      if (connection.allocations.isEmpty() && connections.contains(connection)) {
         connection.idleAtNanos = now - keepAliveDurationNs;
-        return 0;
+        evict(connection, evictedConnections);
+      }
+    }
+  }
+
+  /**
+   * Limits for connections to the hosts matching a {@linkplain #setHostPolicy host pattern}.
+   * Instances are immutable.
+   */
+  public static final class HostPolicy {
+    final int maxIdleConnections;
+    final long keepAliveDurationNs;
+    final int maxConnections;
+    final int maxConcurrentConnects;
+    final int maxPipelinedRequests;
+
+    public HostPolicy(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+        int maxConnections) {
+      this(maxIdleConnections, keepAliveDuration, timeUnit, maxConnections, Integer.MAX_VALUE);
+    }
+
+    public HostPolicy(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+        int maxConnections, int maxConcurrentConnects) {
+      this(maxIdleConnections, keepAliveDuration, timeUnit, maxConnections, maxConcurrentConnects,
+          1);
+    }
+
+    /**
+     * @param maxIdleConnections the number of idle connections to keep to each matching address.
+     * @param keepAliveDuration how long idle connections to matching addresses are kept.
+     * @param maxConnections the total number of connections, idle or in use, to each matching
+     *     address. Calls that need a connection beyond this wait for one to be released, up to
+     *     their connect timeout.
+     * @param maxConcurrentConnects the number of connections to each matching address that may be
+     *     established at once. Calls beyond this wait for a connect to finish, up to their connect
+     *     timeout, and then connect anyway.
+     * @param maxPipelinedRequests the number of GET and HEAD requests that may be in flight at once
+     *     on each HTTP/1.1 connection to matching addresses. Use 1 to disable pipelining. Pipelined
+     *     responses arrive in order, so a slow response delays those behind it.
+     */
+    public HostPolicy(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+        int maxConnections, int maxConcurrentConnects, int maxPipelinedRequests) {
+      if (maxIdleConnections < 0) {
+        throw new IllegalArgumentException("maxIdleConnections < 0: " + maxIdleConnections);
+      }
+      if (keepAliveDuration <= 0) {
+        throw new IllegalArgumentException("keepAliveDuration <= 0: " + keepAliveDuration);
+      }
+      if (maxConnections < 1) {
+        throw new IllegalArgumentException("maxConnections < 1: " + maxConnections);
+      }
+      this.maxIdleConnections = maxIdleConnections;
+      this.keepAliveDurationNs = timeUnit.toNanos(keepAliveDuration);
+      if (maxConcurrentConnects < 1) {
+        throw new IllegalArgumentException("maxConcurrentConnects < 1: " + maxConcurrentConnects);
+      }
+      if (maxPipelinedRequests < 1) {
+        throw new IllegalArgumentException("maxPipelinedRequests < 1: " + maxPipelinedRequests);
+      }
+      this.maxConnections = maxConnections;
+      this.maxConcurrentConnects = maxConcurrentConnects;
+      this.maxPipelinedRequests = maxPipelinedRequests;
+    }
+
+    public int maxIdleConnections() {
+      return maxIdleConnections;
+    }
+
+    public long keepAliveDuration(TimeUnit timeUnit) {
+      return timeUnit.convert(keepAliveDurationNs, TimeUnit.NANOSECONDS);
+    }
+
+    public int maxConnections() {
+      return maxConnections;
+    }
+
+    public int maxConcurrentConnects() {
+      return maxConcurrentConnects;
+    }
+
+    public int maxPipelinedRequests() {
+      return maxPipelinedRequests;
+    }
+  }
+
+  /** Connection counts and usage for a single address. */
+  public static final class AddressStats {
+    private final Address address;
+    private final int connectionCount;
+    private final int idleConnectionCount;
+    private final long connectCount;
+    private final long reuseCount;
+    private final long evictionCount;
+    private final long roundTripNanos;
+
+    AddressStats(Address address, int connectionCount, int idleConnectionCount,
+        long connectCount, long reuseCount, long evictionCount, long roundTripNanos) {
+      this.address = address;
+      this.connectionCount = connectionCount;
+      this.idleConnectionCount = idleConnectionCount;
+      this.connectCount = connectCount;
+      this.reuseCount = reuseCount;
+      this.evictionCount = evictionCount;
+      this.roundTripNanos = roundTripNanos;
+    }
+
+    public Address address() {
+      return address;
+    }
+
+    /** Returns the number of pooled connections to this address, both idle and in use. */
+    public int connectionCount() {
+      return connectionCount;
+    }
+
+    public int idleConnectionCount() {
+      return idleConnectionCount;
+    }
+
+    /** Returns the number of connections to this address that were added to the pool. */
+    public long connectCount() {
+      return connectCount;
+    }
+
+    /** Returns the number of times a pooled connection to this address was reused. */
+    public long reuseCount() {
+      return reuseCount;
+    }
+
+    /** Returns the number of connections to this address that the pool closed. */
+    public long evictionCount() {
+      return evictionCount;
+    }
+
+    /**
+     * Returns the smoothed round trip time of keepalive pings to this address, or -1 if none has
+     * been answered. Only idle multiplexed connections of clients with a {@linkplain
+     * OkHttpClient#setPingInterval ping interval} are pinged.
+     */
+    public long roundTripTime(TimeUnit unit) {
+      return roundTripNanos != -1L ? unit.convert(roundTripNanos, TimeUnit.NANOSECONDS) : -1L;
+    }
+
+    @Override public String toString() {
+      return address.url().host() + ":" + address.url().port()
+          + " connections=" + connectionCount
+          + " idle=" + idleConnectionCount
+          + " connects=" + connectCount
+          + " reuses=" + reuseCount
+          + " evictions=" + evictionCount
+          + (roundTripNanos != -1L ? " rtt=" + roundTripNanos / 1000 + "us" : "");
+    }
+  }
+
+  /** Pooled connections to one address, plus that address's policy and statistics. */
+  private final class AddressConnections {
+    final Address address;
+    final Deque<RealConnection> connections = new ArrayDeque<>();
+    HostPolicy policy;
+    int idleCount;
+    /** Connects by calls in progress. These connections may not be in the pool yet. */
+    int connectsInFlight;
+    /** Connects reserved by connection races. Their connections aren't in the pool yet. */
+    int reservedConnects;
+    /** True if the last connection established to this address wasn't multiplexed. */
+    boolean http1Only;
+    /** True if a pipelined exchange failed at {@link #pipeliningFailedAtNanos}. */
+    boolean pipeliningFailed;
+    long pipeliningFailedAtNanos;
+    long connectCount;
+    long reuseCount;
+    long evictionCount;
+    /** Smoothed round trip time of keepalive pings, or -1 if no ping has been answered. */
+    long roundTripNanos = -1L;
+
+    AddressConnections(Address address, HostPolicy policy) {
+      this.address = address;
+      this.policy = policy;
+    }
+
+    /** Folds in a ping's round trip time, weighting it like TCP's smoothed round trip time. */
+    void roundTripReceived(long sampleNanos) {
+      roundTripNanos = roundTripNanos == -1L
+          ? sampleNanos
+          : roundTripNanos + (sampleNanos - roundTripNanos) / 8;
+    }
+
+    /** Returns true if a new connection to this address might be multiplexed. */
+    boolean mayMultiplex() {
+      return !http1Only
+          && address.sslSocketFactory() != null
+          && (address.protocols().contains(Protocol.HTTP_2)
+          || address.protocols().contains(Protocol.SPDY_3));
+    }
+
+    /** Returns the number of connections being opened by warm-up. */
+    int connectingCount() {
+      WarmUp warmUp = warmUps.get(address);
+      return warmUp != null ? warmUp.connecting : 0;
+    }
+
+    RealConnection longestIdleConnection() {
+      RealConnection result = null;
+      for (RealConnection connection : connections) {
+        if (connection.allocations.isEmpty() && idleConnections.contains(connection)
+            && (result == null || connection.idleAtNanos < result.idleAtNanos)) {
+          result = connection;
+        }
       }
+      return result;
     }
+  }
+
+  /** An address to keep warm and the client settings used to connect to it. */
+  private static final class WarmUp {
+    final Address address;
+    final int minIdleConnections;
+    final OkHttpClient client;
 
-    return references.size();
+    /** Connections being opened for this address. Guarded by the pool. */
+    int connecting;
+
+    WarmUp(Address address, int minIdleConnections, OkHttpClient client) {
+      this.address = address;
+      this.minIdleConnections = minIdleConnections;
+      this.client = client;
+    }
   }
 }
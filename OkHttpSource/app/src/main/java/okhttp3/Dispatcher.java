@@ -15,15 +15,22 @@
  */
 package okhttp3;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.RealCall.AsyncCall;
+import okhttp3.internal.Platform;
 import okhttp3.internal.Util;
 import okhttp3.internal.http.HttpEngine;
 
@@ -33,6 +40,16 @@ import okhttp3.internal.http.HttpEngine;
  * <p>Each dispatcher uses an {@link ExecutorService} to run calls internally. If you supply your
  * own executor, it should be able to run {@linkplain #getMaxRequests the configured maximum} number
  * of calls concurrently.
+ *
+ * <p>Ready calls are queued per host and admitted using atomic counters rather than a dispatcher
+ * wide lock, so enqueueing, finishing and promoting a call costs the same regardless of how many
+ * calls are waiting. Calls to the same host and of the same {@link Priority} run in the order they
+ * were enqueued; hosts with ready calls take turns for free global capacity.
+ *
+ * <p>Free capacity is shared between priority classes by weighted round robin: while every class
+ * has ready calls, each is offered promotions in proportion to {@linkplain #setPriorityWeight its
+ * weight}. Because every class has a weight of at least one, {@link Priority#LOW low priority}
+ * calls keep making progress under a sustained backlog of higher priority calls.
  * 工作流程的概述
  当我们用OkHttpClient.newCall(request)进行execute/enenqueue时，实际是将请求Call放到了Dispatcher中，
  okhttp使用Dispatcher进行线程分发，它有两种方法，一个是普通的同步单线程；另一种是使用了队列进行并发任务的分发(Dispatch)与回调，
@@ -48,33 +65,78 @@ import okhttp3.internal.http.HttpEngine;
 
  */
 public final class Dispatcher {
+  private static final Priority[] PRIORITIES = Priority.values();
+
   //  最大并发请求数为64
-  private int maxRequests = 64;
+  private volatile int maxRequests = 64;
   //maxRequestsPerHost = 5: 每个主机最大请求数为5
-  private int maxRequestsPerHost = 5;
+  private volatile int maxRequestsPerHost = 5;
 
   /** Executes calls. Created lazily.
    * 消费者池（也就是线程池） */
-  private ExecutorService executorService;
+  private volatile ExecutorService executorService;
+
+  /** True if the executor service was supplied by the application. */
+  private final boolean customExecutorService;
 
-  /** Ready calls in the order they'll be run. */
-  //缓存队列排队等待
-  private final Deque<AsyncCall> readyCalls = new ArrayDeque<>();
+  /** Executes calls of clients that use virtual threads. Created lazily. */
+  private volatile ExecutorService virtualExecutorService;
+
+  /** Ready and running state for each host that has calls, keyed by host name. */
+  private final ConcurrentHashMap<String, HostCalls> hostCalls = new ConcurrentHashMap<>();
+
+  /**
+   * For each priority, hosts that have ready calls of that priority and may have capacity to run
+   * them. Each host appears at most once per priority; a host that is at its per-host limit is
+   * dropped and rescheduled when one of its calls finishes.
+   */
+  private final Queue<HostCalls>[] readyHosts = newQueueArray(PRIORITIES.length);
+
+  /** Weights indexed by {@link Priority#ordinal}. Guarded by this. */
+  private final int[] priorityWeights = new int[PRIORITIES.length];
+
+  /** Priority ordinals in weighted round robin order. Replaced when the weights change. */
+  private volatile int[] prioritySchedule;
+  private final AtomicLong priorityTicket = new AtomicLong();
+
+  private final AtomicInteger[] runningCallCounts = new AtomicInteger[PRIORITIES.length];
+  private final AtomicLong[] promotedCallCounts = new AtomicLong[PRIORITIES.length];
+
+  /**
+   * The number of running calls plus the number of admission slots currently reserved by
+   * {@link #promoteCalls}. Never exceeds {@link #maxRequests} due to promotion.
+   */
+  private final AtomicInteger runningCallCount = new AtomicInteger();
 
   /** Running calls. Includes canceled calls that haven't finished yet. */
-  // 运行的双向队列     正在运行的任务，仅仅是用来引用正在运行的任务以判断并发量，注意它并不是消费者缓存
-  private final Deque<AsyncCall> runningCalls = new ArrayDeque<>();
+  // 正在运行的任务，仅仅是用来引用正在运行的任务以判断并发量，注意它并不是消费者缓存
+  private final Set<AsyncCall> runningCalls =
+      Collections.newSetFromMap(new ConcurrentHashMap<AsyncCall, Boolean>());
 
   /** In-flight synchronous calls. Includes canceled calls that haven't finished yet.
    * */
-  private final Deque<RealCall> executedCalls = new ArrayDeque<>();
+  private final Set<RealCall> executedCalls =
+      Collections.newSetFromMap(new ConcurrentHashMap<RealCall, Boolean>());
 
   public Dispatcher(ExecutorService executorService) {
-    this.executorService = executorService;
+    this(executorService, true);
   }
 
   //分发者，也就是生产者（默认在主线程）
   public Dispatcher() {
+    this(null, false);
+  }
+
+  private Dispatcher(ExecutorService executorService, boolean customExecutorService) {
+    this.executorService = executorService;
+    this.customExecutorService = customExecutorService;
+    for (Priority priority : PRIORITIES) {
+      readyHosts[priority.ordinal()] = new ConcurrentLinkedQueue<>();
+      priorityWeights[priority.ordinal()] = priority.defaultWeight;
+      runningCallCounts[priority.ordinal()] = new AtomicInteger();
+      promotedCallCounts[priority.ordinal()] = new AtomicLong();
+    }
+    prioritySchedule = weightedSchedule(priorityWeights);
   }
 
   // ExecutorService 消费者池（也就是线程池）
@@ -86,28 +148,54 @@ public final class Dispatcher {
 //  TimeUnit unit: 时间单位，一般用秒
 //  BlockingQueue<Runnable> workQueue: 工作队列
 //  ThreadFactory threadFactory: 单个线程的工厂，可以打Log，设置Daemon(即当JVM退出时，线程自动结束)等
-  public synchronized ExecutorService getExecutorService() {
-    if (executorService == null) {
-      /*其中比较容易让人误解的是：corePoolSize，maximumPoolSize，workQueue之间关系。
-
-        1.当线程池小于corePoolSize时，新提交任务将创建一个新线程执行任务，即使此时线程池中存在空闲线程。
-        2.当线程池达到corePoolSize时，新提交任务将被放入workQueue中，等待线程池中任务调度执行
-        3.当workQueue已满，且maximumPoolSize>corePoolSize时，新提交任务会创建新线程执行任务
-        4.当提交任务数超过maximumPoolSize时，新提交任务由RejectedExecutionHandler处理
-        5.当线程池中超过corePoolSize线程，空闲时间达到keepAliveTime时，关闭空闲线程
-        6.当设置allowCoreThreadTimeOut(true)时，线程池中corePoolSize线程空闲时间达到keepAliveTime也将关闭
-        http://825635381.iteye.com/blog/2184680
-        */
-      executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-          new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher", false));
-      // 可以看出，在Okhttp中，构建了一个阀值为[0, Integer.MAX_VALUE]的线程池，它不保留任何最小线程数，随时创建更多的线程数，
-      // 当线程空闲时只能活60秒，它使用了一个不存储元素的阻塞工作队列，一个叫做"OkHttp Dispatcher"的线程工厂。
-//      也就是说，在实际运行中，当收到10个并发请求时，线程池会创建十个线程，当工作完成后，线程池会在60s后相继关闭所有线程。
-//      在RxJava的Schedulers.io()中，也有类似的设计，最小的线程数量控制，不设上限的最大线程，以保证I/O任务中高阻塞低占用的过程中，
-//      不会长时间卡在阻塞上，有兴趣的可以分析RxJava中4种不同场景的Schedulers
-
-    }
-    return executorService;
+  public ExecutorService getExecutorService() {
+    ExecutorService result = executorService;
+    if (result != null) return result;
+    synchronized (this) {
+      if (executorService == null) {
+        /*其中比较容易让人误解的是：corePoolSize，maximumPoolSize，workQueue之间关系。
+
+          1.当线程池小于corePoolSize时，新提交任务将创建一个新线程执行任务，即使此时线程池中存在空闲线程。
+          2.当线程池达到corePoolSize时，新提交任务将被放入workQueue中，等待线程池中任务调度执行
+          3.当workQueue已满，且maximumPoolSize>corePoolSize时，新提交任务会创建新线程执行任务
+          4.当提交任务数超过maximumPoolSize时，新提交任务由RejectedExecutionHandler处理
+          5.当线程池中超过corePoolSize线程，空闲时间达到keepAliveTime时，关闭空闲线程
+          6.当设置allowCoreThreadTimeOut(true)时，线程池中corePoolSize线程空闲时间达到keepAliveTime也将关闭
+          http://825635381.iteye.com/blog/2184680
+          */
+        executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher", false));
+        // 可以看出，在Okhttp中，构建了一个阀值为[0, Integer.MAX_VALUE]的线程池，它不保留任何最小线程数，随时创建更多的线程数，
+        // 当线程空闲时只能活60秒，它使用了一个不存储元素的阻塞工作队列，一个叫做"OkHttp Dispatcher"的线程工厂。
+        // 也就是说，在实际运行中，当收到10个并发请求时，线程池会创建十个线程，当工作完成后，线程池会在60s后相继关闭所有线程。
+        // 在RxJava的Schedulers.io()中，也有类似的设计，最小的线程数量控制，不设上限的最大线程，以保证I/O任务中高阻塞低占用的过程中，
+        // 不会长时间卡在阻塞上，有兴趣的可以分析RxJava中4种不同场景的Schedulers
+      }
+      return executorService;
+    }
+  }
+
+  /**
+   * Returns the executor for calls whose client {@linkplain OkHttpClient#setVirtualThreads uses
+   * virtual threads}. Falls back to {@link #getExecutorService} if the application supplied its
+   * own executor or if the runtime doesn't have virtual threads.
+   */
+  private ExecutorService getVirtualExecutorService() {
+    ExecutorService result = virtualExecutorService;
+    if (result != null) return result;
+    synchronized (this) {
+      if (virtualExecutorService == null) {
+        ThreadFactory threadFactory = customExecutorService
+            ? null
+            : Platform.get().virtualThreadFactory("OkHttp Dispatcher");
+        // Virtual threads are cheap to start, so each call gets a new one rather than a pooled one.
+        ExecutorService threadPerTask = threadFactory != null
+            ? Platform.get().newThreadPerTaskExecutor(threadFactory)
+            : null;
+        virtualExecutorService = threadPerTask != null ? threadPerTask : getExecutorService();
+      }
+      return virtualExecutorService;
+    }
   }
 
   /**
@@ -117,7 +205,7 @@ public final class Dispatcher {
    * <p>If more than {@code maxRequests} requests are in flight when this is invoked, those requests
    * will remain in flight.
    */
-  public synchronized void setMaxRequests(int maxRequests) {
+  public void setMaxRequests(int maxRequests) {
     if (maxRequests < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequests);
     }
@@ -125,7 +213,7 @@ public final class Dispatcher {
     promoteCalls();
   }
 
-  public synchronized int getMaxRequests() {
+  public int getMaxRequests() {
     return maxRequests;
   }
 
@@ -138,37 +226,71 @@ public final class Dispatcher {
    * <p>If more than {@code maxRequestsPerHost} requests are in flight when this is invoked, those
    * requests will remain in flight.
    */
-  public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+  public void setMaxRequestsPerHost(int maxRequestsPerHost) {
     if (maxRequestsPerHost < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
     }
     this.maxRequestsPerHost = maxRequestsPerHost;
+    for (HostCalls calls : hostCalls.values()) {
+      scheduleReady(calls);
+    }
     promoteCalls();
   }
 
-  public synchronized int getMaxRequestsPerHost() {
+  public int getMaxRequestsPerHost() {
     return maxRequestsPerHost;
   }
 
+  /**
+   * Sets the share of free capacity given to calls of {@code priority} while other classes also
+   * have calls waiting. For example with weights of 4, 2 and 1 a backlogged high priority class
+   * gets 4 of every 7 promotions. Classes without waiting calls don't hold capacity back.
+   */
+  public synchronized void setPriorityWeight(Priority priority, int weight) {
+    if (priority == null) throw new IllegalArgumentException("priority == null");
+    if (weight < 1) throw new IllegalArgumentException("weight < 1: " + weight);
+    priorityWeights[priority.ordinal()] = weight;
+    prioritySchedule = weightedSchedule(priorityWeights);
+  }
+
+  public synchronized int getPriorityWeight(Priority priority) {
+    return priorityWeights[priority.ordinal()];
+  }
+
 //  当HttpClient的请求入队时，根据代码，我们可以发现实际上是Dispatcher进行了入队操作
-  synchronized void enqueue(AsyncCall call) {
-//    可以发现请求是否进入缓存的条件如下(runningRequests<64 && runningRequestsPerHost<5)：
-    if (runningCalls.size() < maxRequests && runningCallsForHost(call) < maxRequestsPerHost) {
-      //添加正在运行的请求
-      runningCalls.add(call);
-      //线程池执行请求
-      getExecutorService().execute(call);
-    } else {
-      //添加到缓存队列排队等待
-      readyCalls.add(call);
+  void enqueue(AsyncCall call) {
+    String host = call.host();
+    while (true) {
+      HostCalls calls = hostCalls.get(host);
+      if (calls == null) {
+        HostCalls created = new HostCalls(host);
+        calls = hostCalls.putIfAbsent(host, created);
+        if (calls == null) calls = created;
+      }
+
+      //添加到该主机的缓存队列排队等待
+      int priority = call.priority().ordinal();
+      calls.readyCalls[priority].add(call);
+
+      // If this host was retired concurrently take the call back and retry on its replacement.
+      // Retired hosts never promote calls so the removal cannot race a promotion.
+      if (calls.isRetired() && calls.readyCalls[priority].remove(call)) continue;
+
+      schedule(calls, priority);
+      break;
     }
+    promoteCalls();
   }
 
   /** Cancel all calls with the tag {@code tag}. */
-  public synchronized void cancel(Object tag) {
-    for (AsyncCall call : readyCalls) {
-      if (Util.equal(tag, call.tag())) {
-        call.cancel();
+  public void cancel(Object tag) {
+    for (HostCalls calls : hostCalls.values()) {
+      for (Queue<AsyncCall> readyCalls : calls.readyCalls) {
+        for (AsyncCall call : readyCalls) {
+          if (Util.equal(tag, call.tag())) {
+            call.cancel();
+          }
+        }
       }
     }
 
@@ -189,58 +311,256 @@ public final class Dispatcher {
 
   /** Used by {@code AsyncCall#run} to signal completion. */
   // RealCall.execute() 当asyncCall 无论成功还是失败都会回调这
-  synchronized void finished(AsyncCall call) {
+  void finished(AsyncCall call) {
     if (!runningCalls.remove(call)) throw new AssertionError("AsyncCall wasn't running!");
+
+    // A host with running calls is never retired, so this is the entry the call was promoted from.
+    HostCalls calls = hostCalls.get(call.host());
+    calls.runningCallCount.decrementAndGet();
+    runningCallCounts[call.priority().ordinal()].decrementAndGet();
+    runningCallCount.decrementAndGet();
+
+    if (!scheduleReady(calls)) {
+      retireIfIdle(calls);
+    }
     promoteCalls();
   }
 
 //  这样，就主动的把缓存队列向前走了一步，而没有使用互斥锁等复杂编码
   //将缓存队列向前推进了一步
+  /**
+   * Moves ready calls to running until either the global limit is reached or no host with ready
+   * calls has capacity. Each promotion reserves a global slot and then a per-host slot with a
+   * compare-and-set, so concurrent callers never admit more calls than the limits allow.
+   */
   private void promoteCalls() {
-    //如果目前是最大负荷运转，接着等
-    if (runningCalls.size() >= maxRequests) return; // Already running max capacity.
-    //如果缓存等待区是空的，接着等
-    if (readyCalls.isEmpty()) return; // No ready calls to promote.
-
-    for (Iterator<AsyncCall> i = readyCalls.iterator(); i.hasNext(); ) {
-      AsyncCall call = i.next();
-
-      if (runningCallsForHost(call) < maxRequestsPerHost) {
-        //将缓存等待区最后一个移动到运行区中，并执行
-        i.remove();
-        runningCalls.add(call);
+    while (true) {
+      //如果目前是最大负荷运转，接着等
+      if (!reserve(runningCallCount, maxRequests)) return; // Already running max capacity.
+
+      int priority = nextPriority();
+      HostCalls calls = priority != -1 ? readyHosts[priority].poll() : null;
+      if (calls == null) {
+        runningCallCount.decrementAndGet();
+        // A concurrent enqueue may have failed to reserve while we held the last slot.
+        if (!hasReadyHosts()) return; // No ready calls to promote.
+        continue;
+      }
+      calls.scheduled[priority].set(false);
+
+      // If this host is saturated, the next call it finishes will schedule it again.
+      if (!reserve(calls.runningCallCount, maxRequestsPerHost)) {
+        runningCallCount.decrementAndGet();
+        continue;
+      }
+
+      Queue<AsyncCall> readyCalls = calls.readyCalls[priority];
+      AsyncCall call = readyCalls.poll();
+      if (call == null) {
+        // Another thread promoted this host's last ready call.
+        calls.runningCallCount.decrementAndGet();
+        runningCallCount.decrementAndGet();
+        if (!readyCalls.isEmpty()) schedule(calls, priority);
+        continue;
+      }
+
+      // Give other hosts a turn before this host's next call.
+      if (!readyCalls.isEmpty()) schedule(calls, priority);
+
+      runningCallCounts[priority].incrementAndGet();
+      promotedCallCounts[priority].incrementAndGet();
+      runningCalls.add(call);
+      if (call.virtualThreads()) {
+        getVirtualExecutorService().execute(call);
+      } else {
         getExecutorService().execute(call);
       }
+    }
+  }
 
-      if (runningCalls.size() >= maxRequests) return; // Reached max capacity.
+  /**
+   * Returns the ordinal of the priority to promote from next, or -1 if no host has ready calls.
+   * The weighted schedule picks the preferred class. If it has nothing ready, the schedule is
+   * walked on to the next class that does, so capacity is never left idle and an idle class's
+   * share goes to the others in proportion to their weights.
+   */
+  private int nextPriority() {
+    int[] schedule = prioritySchedule;
+    long rawTicket = priorityTicket.getAndIncrement();
+    long ticket = rawTicket & Long.MAX_VALUE;
+    for (int i = 0; i < schedule.length; i++) {
+      int priority = schedule[(int) ((ticket + i) % schedule.length)];
+      if (readyHosts[priority].isEmpty()) continue;
+
+      // Consume the skipped slots too, so that the next promotion continues after this one. If
+      // another thread took a ticket meanwhile, the skipped slots are simply probed again.
+      if (i > 0) priorityTicket.compareAndSet(rawTicket + 1, rawTicket + i + 1);
+      return priority;
     }
+    return -1;
   }
 
-  /** Returns the number of running calls that share a host with {@code call}. */
-  private int runningCallsForHost(AsyncCall call) {
-    int result = 0;
-    for (AsyncCall c : runningCalls) {
-      if (c.host().equals(call.host())) result++;
+  /** Returns true if any host has ready calls. Unlike {@link #nextPriority} this takes no turn. */
+  private boolean hasReadyHosts() {
+    for (Queue<HostCalls> hosts : readyHosts) {
+      if (!hosts.isEmpty()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Adds {@code calls} to the ready hosts queue for {@code priority} unless it is already there.
+   */
+  private void schedule(HostCalls calls, int priority) {
+    if (calls.scheduled[priority].compareAndSet(false, true)) {
+      readyHosts[priority].add(calls);
+    }
+  }
+
+  /** Schedules {@code calls} for each priority it has ready calls for. Returns false if none. */
+  private boolean scheduleReady(HostCalls calls) {
+    boolean result = false;
+    for (int i = 0; i < calls.readyCalls.length; i++) {
+      if (!calls.readyCalls[i].isEmpty()) {
+        schedule(calls, i);
+        result = true;
+      }
     }
     return result;
   }
 
+  /**
+   * Drops {@code calls} from the host map once it has no ready or running calls, so dispatchers
+   * talking to many distinct hosts don't grow without bound.
+   */
+  private void retireIfIdle(HostCalls calls) {
+    if (calls.hasReadyCalls() || !calls.runningCallCount.compareAndSet(0, -1)) return;
+
+    if (!calls.hasReadyCalls()) {
+      hostCalls.remove(calls.host, calls);
+    } else {
+      // A call was enqueued before the retirement was visible. Keep this host.
+      calls.runningCallCount.set(0);
+      scheduleReady(calls);
+    }
+  }
+
+  /**
+   * Increments {@code count} if it is non-negative and below {@code limit}. Returns true if a slot
+   * was reserved.
+   */
+  private static boolean reserve(AtomicInteger count, int limit) {
+    while (true) {
+      int current = count.get();
+      if (current < 0 || current >= limit) return false;
+      if (count.compareAndSet(current, current + 1)) return true;
+    }
+  }
+
+  /**
+   * Returns the ordinals of {@code weights} interleaved so that each appears in proportion to its
+   * weight, spread as evenly as possible. This is nginx's smooth weighted round robin.
+   */
+  private static int[] weightedSchedule(int[] weights) {
+    int total = 0;
+    for (int weight : weights) {
+      total += weight;
+    }
+
+    int[] result = new int[total];
+    int[] current = new int[weights.length];
+    for (int slot = 0; slot < total; slot++) {
+      int best = 0;
+      for (int i = 0; i < weights.length; i++) {
+        current[i] += weights[i];
+        if (current[i] > current[best]) best = i;
+      }
+      current[best] -= total;
+      result[slot] = best;
+    }
+    return result;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"}) // Generic array creation.
+  private static <T> Queue<T>[] newQueueArray(int size) {
+    return new Queue[size];
+  }
+
   /** Used by {@code Call#execute} to signal it is in-flight. */
   //client 调用call 在用realcall 再执行 .executed
-  synchronized void executed(RealCall call) {
+  void executed(RealCall call) {
     executedCalls.add(call);
   }
 
   /** Used by {@code Call#execute} to signal completion. */
-  synchronized void finished(Call call) {
+  void finished(Call call) {
     if (!executedCalls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
   }
 
-  public synchronized int getRunningCallCount() {
+  public int getRunningCallCount() {
     return runningCalls.size();
   }
 
-  public synchronized int getQueuedCallCount() {
-    return readyCalls.size();
+  public int getQueuedCallCount() {
+    int result = 0;
+    for (HostCalls calls : hostCalls.values()) {
+      for (Queue<AsyncCall> readyCalls : calls.readyCalls) {
+        result += readyCalls.size();
+      }
+    }
+    return result;
+  }
+
+  /** Returns the number of running asynchronous calls of {@code priority}. */
+  public int getRunningCallCount(Priority priority) {
+    return runningCallCounts[priority.ordinal()].get();
+  }
+
+  /** Returns the number of asynchronous calls of {@code priority} waiting to run. */
+  public int getQueuedCallCount(Priority priority) {
+    int result = 0;
+    for (HostCalls calls : hostCalls.values()) {
+      result += calls.readyCalls[priority.ordinal()].size();
+    }
+    return result;
+  }
+
+  /** Returns the total number of asynchronous calls of {@code priority} that have been started. */
+  public long getPromotedCallCount(Priority priority) {
+    return promotedCallCounts[priority.ordinal()].get();
+  }
+
+  /** The ready queue and running count of calls that share a host. */
+  private static final class HostCalls {
+    final String host;
+
+    /** Ready calls of each priority in the order they'll be run. */
+    //缓存队列排队等待
+    final Queue<AsyncCall>[] readyCalls = newQueueArray(PRIORITIES.length);
+
+    /** Running and reserved calls for this host, or -1 once this entry has been retired. */
+    final AtomicInteger runningCallCount = new AtomicInteger();
+
+    /** Indexed by priority. True while this host is in that priority's {@link #readyHosts}. */
+    final AtomicBoolean[] scheduled = new AtomicBoolean[PRIORITIES.length];
+
+    HostCalls(String host) {
+      this.host = host;
+      for (int i = 0; i < PRIORITIES.length; i++) {
+        readyCalls[i] = new ConcurrentLinkedQueue<>();
+        scheduled[i] = new AtomicBoolean();
+      }
+    }
+
+    boolean hasReadyCalls() {
+      for (Queue<AsyncCall> queue : readyCalls) {
+        if (!queue.isEmpty()) return true;
+      }
+      return false;
+    }
+
+    boolean isRetired() {
+      return runningCallCount.get() < 0;
+    }
   }
 }
@@ -15,6 +15,7 @@
  */
 package okhttp3;
 
+import java.lang.ref.ReferenceQueue;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
@@ -27,12 +28,14 @@ import java.util.concurrent.TimeUnit;
 import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import okhttp3.internal.Internal;
 import okhttp3.internal.InternalCache;
 import okhttp3.internal.RouteDatabase;
 import okhttp3.internal.Util;
+import okhttp3.internal.http.HttpEngine;
 import okhttp3.internal.http.StreamAllocation;
 import okhttp3.internal.io.RealConnection;
 import okhttp3.internal.tls.OkHostnameVerifier;
@@ -89,6 +92,30 @@ public class OkHttpClient implements Cloneable, Call.Factory {
         return pool.get(address, streamAllocation);
       }
 
+      @Override public RealConnection get(ConnectionPool pool, Address address,
+          StreamAllocation streamAllocation, Route route) {
+        return pool.get(address, streamAllocation, route);
+      }
+
+      @Override public boolean equalsNonHost(Address a, Address b) {
+        return a.equalsNonHost(b);
+      }
+
+      @Override public void tlsHandshakeStarting(TlsSessionCache tlsSessionCache, String host,
+          int port, ConnectionSpec connectionSpec) {
+        tlsSessionCache.handshakeStarting(host, port, connectionSpec);
+      }
+
+      @Override public void tlsHandshakeSucceeded(TlsSessionCache tlsSessionCache, String host,
+          int port, ConnectionSpec connectionSpec, SSLSession session) {
+        tlsSessionCache.handshakeSucceeded(host, port, connectionSpec, session);
+      }
+
+      @Override public void tlsHandshakeFailed(TlsSessionCache tlsSessionCache, String host,
+          int port, ConnectionSpec connectionSpec) {
+        tlsSessionCache.handshakeFailed(host, port, connectionSpec);
+      }
+
       @Override public void put(ConnectionPool pool, RealConnection connection) {
         pool.put(connection);
       }
@@ -97,6 +124,44 @@ public class OkHttpClient implements Cloneable, Call.Factory {
         return connectionPool.routeDatabase;
       }
 
+      @Override public ReferenceQueue<StreamAllocation> leakedAllocations(ConnectionPool pool) {
+        return pool.leakedAllocations;
+      }
+
+      @Override public boolean connectionLimitReached(ConnectionPool pool, Address address) {
+        return pool.connectionLimitReached(address);
+      }
+
+      @Override public boolean shouldAwaitConnect(ConnectionPool pool, Address address) {
+        return pool.shouldAwaitConnect(address);
+      }
+
+      @Override public void connectStarted(ConnectionPool pool, Address address) {
+        pool.connectStarted(address);
+      }
+
+      @Override public void connectFinished(
+          ConnectionPool pool, Address address, RealConnection connection) {
+        pool.connectFinished(address, connection);
+      }
+
+      @Override public int reserveConnects(ConnectionPool pool, Address address, int count) {
+        return pool.reserveConnects(address, count);
+      }
+
+      @Override public void raceFinished(
+          ConnectionPool pool, Address address, int reserved, RealConnection winner) {
+        pool.raceFinished(address, reserved, winner);
+      }
+
+      @Override public void pipeliningFailed(ConnectionPool pool, Address address) {
+        pool.pipeliningFailed(address);
+      }
+
+      @Override public void connectionDraining(ConnectionPool pool, RealConnection connection) {
+        pool.connectionDraining(connection);
+      }
+
       @Override
       public void callEnqueue(Call call, Callback responseCallback, boolean forWebSocket) {
         ((RealCall) call).enqueue(responseCallback, forWebSocket);
@@ -139,6 +204,7 @@ public class OkHttpClient implements Cloneable, Call.Factory {
   private SSLSocketFactory sslSocketFactory;
   private HostnameVerifier hostnameVerifier;
   private CertificatePinner certificatePinner;
+  private TlsSessionCache tlsSessionCache;
   private Authenticator proxyAuthenticator;
   private Authenticator authenticator;
   // 初始化的时候，就已经自动创建了一个连接池
@@ -147,9 +213,11 @@ public class OkHttpClient implements Cloneable, Call.Factory {
   private boolean followSslRedirects = true;
   private boolean followRedirects = true;
   private boolean retryOnConnectionFailure = true;
+  private boolean virtualThreads;
   private int connectTimeout = 10_000;
   private int readTimeout = 10_000;
   private int writeTimeout = 10_000;
+  private int pingInterval;
 
   //构造 okhttp 客户端的时候，就同时 Dispatcher 时间分发者 和链路数据库
   public OkHttpClient() {
@@ -173,6 +241,7 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     this.sslSocketFactory = okHttpClient.sslSocketFactory;
     this.hostnameVerifier = okHttpClient.hostnameVerifier;
     this.certificatePinner = okHttpClient.certificatePinner;
+    this.tlsSessionCache = okHttpClient.tlsSessionCache;
     this.proxyAuthenticator = okHttpClient.proxyAuthenticator;
     this.authenticator = okHttpClient.authenticator;
     this.connectionPool = okHttpClient.connectionPool;
@@ -180,9 +249,11 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     this.followSslRedirects = okHttpClient.followSslRedirects;
     this.followRedirects = okHttpClient.followRedirects;
     this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
+    this.virtualThreads = okHttpClient.virtualThreads;
     this.connectTimeout = okHttpClient.connectTimeout;
     this.readTimeout = okHttpClient.readTimeout;
     this.writeTimeout = okHttpClient.writeTimeout;
+    this.pingInterval = okHttpClient.pingInterval;
   }
 
   /**
@@ -246,6 +317,30 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     return writeTimeout;
   }
 
+  /**
+   * Sets how often new HTTP/2 and SPDY connections are pinged while idle in the connection pool.
+   * An idle connection that doesn't answer its ping within the interval is closed, so that calls
+   * don't hang on connections that a NAT or load balancer dropped silently. Round trip times of
+   * answered pings are reported by {@link ConnectionPool#getAddressStats}.
+   *
+   * <p>A value of 0, the default, disables pings. Otherwise values must be between 1 and {@link
+   * Integer#MAX_VALUE} when converted to milliseconds.
+   */
+  public OkHttpClient setPingInterval(long interval, TimeUnit unit) {
+    if (interval < 0) throw new IllegalArgumentException("interval < 0");
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    long millis = unit.toMillis(interval);
+    if (millis > Integer.MAX_VALUE) throw new IllegalArgumentException("Interval too large.");
+    if (millis == 0 && interval > 0) throw new IllegalArgumentException("Interval too small.");
+    pingInterval = (int) millis;
+    return this;
+  }
+
+  /** Idle connection ping interval (in milliseconds). */
+  public int getPingInterval() {
+    return pingInterval;
+  }
+
   /**
    * Sets the HTTP proxy that will be used by connections created by this client. This takes
    * precedence over {@link #setProxySelector}, which is only honored when this proxy is null (which
@@ -386,6 +481,20 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     return certificatePinner;
   }
 
+  /**
+   * Sets the cache that bounds and measures TLS session resumption for HTTPS connections. By
+   * default sessions are resumed as the {@link #setSslSocketFactory SSL socket factory} sees fit,
+   * and resumption isn't measured.
+   */
+  public OkHttpClient setTlsSessionCache(TlsSessionCache tlsSessionCache) {
+    this.tlsSessionCache = tlsSessionCache;
+    return this;
+  }
+
+  public TlsSessionCache getTlsSessionCache() {
+    return tlsSessionCache;
+  }
+
   /**
    * Sets the authenticator used to respond to challenges from origin servers. Use {@link
    * #setProxyAuthenticator} to set the authenticator for proxy servers.
@@ -483,6 +592,26 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     return retryOnConnectionFailure;
   }
 
+  /**
+   * Configure this client to run its blocking work on virtual threads. This covers asynchronous
+   * calls and the reader loop and push callbacks of HTTP/2 and SPDY connections. Virtual threads
+   * are cheap enough that tens of thousands of concurrent blocking calls don't each pin a platform
+   * thread. The connection pool may be shared by several clients, so its cleanup thread is
+   * configured with {@link ConnectionPool#setVirtualThreads} instead.
+   *
+   * <p>This has no effect on runtimes without virtual threads, including Android and Java versions
+   * before 21; platform threads are used instead. It is also ignored for asynchronous calls if the
+   * {@linkplain #setDispatcher dispatcher} was created with its own executor service.
+   */
+  public OkHttpClient setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+    return this;
+  }
+
+  public boolean getVirtualThreads() {
+    return virtualThreads;
+  }
+
   RouteDatabase routeDatabase() {
     return routeDatabase;
   }
@@ -583,6 +712,31 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     return new RealCall(this, request);
   }
 
+  /**
+   * Opens connections to {@code url}'s host in the background, ahead of the first request, so that
+   * calls don't pay for DNS, TCP and TLS handshakes. The pool then keeps at least {@code
+   * minIdleConnections} idle connections to that address, opening replacements when warm
+   * connections are used or evicted. For HTTP/2 and SPDY a single connection is kept since it can
+   * carry many calls.
+   *
+   * <p>The connections use this client's current configuration; requests made after changing the
+   * client's proxy, socket factories or protocols won't use them. Pass 0 to stop keeping
+   * connections to {@code url} warm.
+   *
+   * @throws IllegalArgumentException if the pool's warm connections would exceed its idle
+   *     connection limit.
+   */
+  public OkHttpClient warmUp(HttpUrl url, int minIdleConnections) {
+    if (url == null) throw new IllegalArgumentException("url == null");
+    if (minIdleConnections < 0) {
+      throw new IllegalArgumentException("minIdleConnections < 0: " + minIdleConnections);
+    }
+    OkHttpClient client = copyWithDefaults();
+    Address address = HttpEngine.createAddress(client, url);
+    connectionPool.warmUp(address, minIdleConnections, client);
+    return this;
+  }
+
   /**
    * Cancels all scheduled or in-flight calls tagged with {@code tag}. Requests that are already
    * complete cannot be canceled.
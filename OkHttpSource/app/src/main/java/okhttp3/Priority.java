@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+/**
+ * Scheduling classes for requests, from most to least latency-sensitive. The {@link Dispatcher}
+ * shares free capacity between classes in proportion to {@linkplain
+ * Dispatcher#setPriorityWeight their weights}.
+ *
+ * <p>On HTTP/2 and SPDY connections the priority also sets the {@linkplain #streamWeight weight}
+ * of the request's stream. The request and response bodies of concurrent streams are interleaved
+ * in proportion to these weights.
+ */
+public enum Priority {
+  /** Interactive calls that a user is waiting on. */
+  HIGH(4, 64),
+
+  /** The default for requests that don't specify a priority. */
+  NORMAL(2, 16),
+
+  /** Bulk and background work that should yield to other calls. */
+  LOW(1, 4);
+
+  final int defaultWeight;
+  private final int streamWeight;
+
+  Priority(int defaultWeight, int streamWeight) {
+    this.defaultWeight = defaultWeight;
+    this.streamWeight = streamWeight;
+  }
+
+  /**
+   * Returns the HTTP/2 stream weight of requests with this priority, between 1 and 256. {@link
+   * #NORMAL} is HTTP/2's default weight of 16, and each class gets four times the share of the
+   * one below it.
+   */
+  public int streamWeight() {
+    return streamWeight;
+  }
+}
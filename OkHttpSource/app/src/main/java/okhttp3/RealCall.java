@@ -120,6 +120,14 @@ final class RealCall implements Call {
       return originalRequest;
     }
 
+    Priority priority() {
+      return originalRequest.priority();
+    }
+
+    boolean virtualThreads() {
+      return client.getVirtualThreads();
+    }
+
     Object tag() {
       return originalRequest.tag();
     }
@@ -30,6 +30,7 @@ public final class Request {
   private final Headers headers;
   private final RequestBody body;
   private final Object tag;
+  private final Priority priority;
 
   private volatile URI javaNetUri; // Lazily initialized.
   private volatile CacheControl cacheControl; // Lazily initialized.
@@ -40,6 +41,7 @@ public final class Request {
     this.headers = builder.headers.build();
     this.body = builder.body;
     this.tag = builder.tag != null ? builder.tag : this;
+    this.priority = builder.priority;
   }
 
   public HttpUrl url() {
@@ -70,6 +72,10 @@ public final class Request {
     return tag;
   }
 
+  public Priority priority() {
+    return priority;
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -103,9 +109,11 @@ public final class Request {
     private Headers.Builder headers;
     private RequestBody body;
     private Object tag;
+    private Priority priority;
 
     public Builder() {
       this.method = "GET";
+      this.priority = Priority.NORMAL;
       this.headers = new Headers.Builder();
     }
 
@@ -114,6 +122,7 @@ public final class Request {
       this.method = request.method;
       this.body = request.body;
       this.tag = request.tag;
+      this.priority = request.priority;
       this.headers = request.headers.newBuilder();
     }
 
@@ -252,6 +261,18 @@ public final class Request {
       return this;
     }
 
+    /**
+     * Sets the scheduling class of this request. The dispatcher uses it to order asynchronous calls
+     * that are waiting for capacity, and HTTP/2 connections use it to {@linkplain
+     * Priority#streamWeight weight} the request's stream against others on the same connection. If
+     * unspecified, requests have {@link Priority#NORMAL normal} priority.
+     */
+    public Builder priority(Priority priority) {
+      if (priority == null) throw new IllegalArgumentException("priority == null");
+      this.priority = priority;
+      return this;
+    }
+
     public Request build() {
       if (url == null) throw new IllegalStateException("url == null");
       return new Request(this);
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Bounds and measures the reuse of TLS sessions for a client's HTTPS connections. 管理TLS会话复用
+ *
+ * <p>The TLS stack resumes a session when it connects to a host and port it has a session for,
+ * turning a full handshake into an abbreviated one. Left to itself it keeps sessions for as long
+ * as its own configuration permits, which OkHttp can't see into. This cache tracks the session of
+ * each host, port and {@link ConnectionSpec} that OkHttp connected with and invalidates those that
+ * are older than the time to live or that are dropped because the cache is full. An invalidated
+ * session is never resumed. A failed handshake also invalidates the session it may have tried to
+ * resume, so that the retry starts from scratch.
+ *
+ * <h3>Cache Optimization</h3>
+ *
+ * <p>To measure how many handshakes were abbreviated, this class tracks two statistics:
+ * <ul>
+ *     <li><strong>{@linkplain #getHandshakeCount() Handshake Count:}</strong> the number of
+ *         successful TLS handshakes since this cache was created.
+ *     <li><strong>{@linkplain #getResumedCount() Resumed Count:}</strong> the number of those
+ *         handshakes that resumed a cached session.
+ * </ul>
+ */
+public final class TlsSessionCache {
+  private final int maxSize;
+  private final long timeToLiveMillis;
+
+  /** Sessions in access order. 按访问顺序排列，队头最久未使用 */
+  private final LinkedHashMap<Key, SSLSession> sessions;
+
+  private int handshakeCount;
+  private int resumedCount;
+
+  /**
+   * Create a cache of up to 64 sessions that are resumed for up to 12 hours. These defaults are
+   * subject to change in future OkHttp releases.
+   */
+  public TlsSessionCache() {
+    this(64, 12, TimeUnit.HOURS);
+  }
+
+  public TlsSessionCache(int maxSize, long timeToLive, TimeUnit timeUnit) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    if (timeToLive <= 0) throw new IllegalArgumentException("timeToLive <= 0: " + timeToLive);
+    this.maxSize = maxSize;
+    this.timeToLiveMillis = timeUnit.toMillis(timeToLive);
+    this.sessions = new LinkedHashMap<Key, SSLSession>(0, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Key, SSLSession> eldest) {
+        if (size() <= TlsSessionCache.this.maxSize) return false;
+        eldest.getValue().invalidate();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Invoked before a handshake with {@code host}. Invalidates the cached session if it has expired
+   * so that it isn't resumed.
+   */
+  synchronized void handshakeStarting(String host, int port, ConnectionSpec connectionSpec) {
+    Key key = new Key(host, port, connectionSpec);
+    SSLSession session = sessions.get(key);
+    if (session == null) return;
+
+    if (!session.isValid()
+        || System.currentTimeMillis() - session.getCreationTime() >= timeToLiveMillis) {
+      session.invalidate();
+      sessions.remove(key);
+    }
+  }
+
+  /** Invoked after a successful handshake with {@code host}. */
+  synchronized void handshakeSucceeded(String host, int port, ConnectionSpec connectionSpec,
+      SSLSession session) {
+    Key key = new Key(host, port, connectionSpec);
+    SSLSession previous = sessions.put(key, session);
+    handshakeCount++;
+    if (previous != null && (previous == session || isSameSession(previous, session))) {
+      resumedCount++;
+    }
+  }
+
+  /** Invoked after a failed handshake with {@code host}. */
+  synchronized void handshakeFailed(String host, int port, ConnectionSpec connectionSpec) {
+    SSLSession session = sessions.remove(new Key(host, port, connectionSpec));
+    if (session != null) session.invalidate();
+  }
+
+  private static boolean isSameSession(SSLSession a, SSLSession b) {
+    byte[] id = a.getId();
+    return id != null && id.length > 0 && Arrays.equals(id, b.getId());
+  }
+
+  /** Invalidates and removes all cached sessions. */
+  public synchronized void evictAll() {
+    for (SSLSession session : sessions.values()) {
+      session.invalidate();
+    }
+    sessions.clear();
+  }
+
+  /** Returns the number of sessions in this cache. */
+  public synchronized int size() {
+    return sessions.size();
+  }
+
+  public synchronized int getHandshakeCount() {
+    return handshakeCount;
+  }
+
+  public synchronized int getResumedCount() {
+    return resumedCount;
+  }
+
+  private static final class Key {
+    final String host;
+    final int port;
+    final ConnectionSpec connectionSpec;
+
+    Key(String host, int port, ConnectionSpec connectionSpec) {
+      this.host = host;
+      this.port = port;
+      this.connectionSpec = connectionSpec;
+    }
+
+    @Override public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key that = (Key) other;
+      return host.equals(that.host)
+          && port == that.port
+          && connectionSpec.equals(that.connectionSpec);
+    }
+
+    @Override public int hashCode() {
+      int result = 17;
+      result = 31 * result + host.hashCode();
+      result = 31 * result + port;
+      result = 31 * result + connectionSpec.hashCode();
+      return result;
+    }
+  }
+}
@@ -15,9 +15,11 @@
  */
 package okhttp3.internal;
 
+import java.lang.ref.ReferenceQueue;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import okhttp3.Address;
 import okhttp3.Call;
@@ -27,6 +29,8 @@ import okhttp3.ConnectionSpec;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.Route;
+import okhttp3.TlsSessionCache;
 import okhttp3.internal.http.StreamAllocation;
 import okhttp3.internal.io.RealConnection;
 
@@ -55,12 +59,46 @@ public abstract class Internal {
   public abstract RealConnection get(
       ConnectionPool pool, Address address, StreamAllocation streamAllocation);
 
+  public abstract RealConnection get(
+      ConnectionPool pool, Address address, StreamAllocation streamAllocation, Route route);
+
+  public abstract boolean equalsNonHost(Address a, Address b);
+
+  public abstract void tlsHandshakeStarting(TlsSessionCache tlsSessionCache, String host,
+      int port, ConnectionSpec connectionSpec);
+
+  public abstract void tlsHandshakeSucceeded(TlsSessionCache tlsSessionCache, String host,
+      int port, ConnectionSpec connectionSpec, SSLSession session);
+
+  public abstract void tlsHandshakeFailed(TlsSessionCache tlsSessionCache, String host,
+      int port, ConnectionSpec connectionSpec);
+
   public abstract void put(ConnectionPool pool, RealConnection connection);
 
   public abstract boolean connectionBecameIdle(ConnectionPool pool, RealConnection connection);
 
   public abstract RouteDatabase routeDatabase(ConnectionPool connectionPool);
 
+  public abstract ReferenceQueue<StreamAllocation> leakedAllocations(ConnectionPool pool);
+
+  public abstract boolean connectionLimitReached(ConnectionPool pool, Address address);
+
+  public abstract boolean shouldAwaitConnect(ConnectionPool pool, Address address);
+
+  public abstract void connectStarted(ConnectionPool pool, Address address);
+
+  public abstract void connectFinished(
+      ConnectionPool pool, Address address, RealConnection connection);
+
+  public abstract int reserveConnects(ConnectionPool pool, Address address, int count);
+
+  public abstract void raceFinished(
+      ConnectionPool pool, Address address, int reserved, RealConnection winner);
+
+  public abstract void pipeliningFailed(ConnectionPool pool, Address address);
+
+  public abstract void connectionDraining(ConnectionPool pool, RealConnection connection);
+
   public abstract void apply(ConnectionSpec tlsConfiguration, SSLSocket sslSocket,
       boolean isFallback);
 
@@ -27,6 +27,9 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import javax.net.ssl.SSLSocket;
 import okhttp3.Protocol;
@@ -108,6 +111,64 @@ public class Platform {
     System.out.println(message);
   }
 
+  /**
+   * Returns a factory for virtual threads named {@code name}, or null if this runtime doesn't
+   * support them. Virtual threads are available on Java 21 and newer; never on Android.
+   */
+  public ThreadFactory virtualThreadFactory(String name) {
+    if (VirtualThreads.factory == null) return null;
+    try {
+      Object builder = VirtualThreads.ofVirtual.invoke(null);
+      builder = VirtualThreads.name.invoke(builder, name);
+      return (ThreadFactory) VirtualThreads.factory.invoke(builder);
+    } catch (IllegalAccessException | InvocationTargetException ignored) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns an executor that starts a new thread from {@code threadFactory} for each task, or null
+   * if this runtime doesn't have one. Virtual threads are cheap to start and shouldn't be pooled.
+   */
+  public ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+    if (VirtualThreads.newThreadPerTaskExecutor == null) return null;
+    try {
+      return (ExecutorService) VirtualThreads.newThreadPerTaskExecutor.invoke(null, threadFactory);
+    } catch (IllegalAccessException | InvocationTargetException ignored) {
+      return null;
+    }
+  }
+
+  /** The virtual thread methods of Java 21, looked up once. Each is null on older runtimes. */
+  private static final class VirtualThreads {
+    static final Method ofVirtual;
+    static final Method name;
+    static final Method factory;
+    static final Method newThreadPerTaskExecutor;
+
+    static {
+      Method ofVirtualMethod = null;
+      Method nameMethod = null;
+      Method factoryMethod = null;
+      Method newThreadPerTaskExecutorMethod = null;
+      try {
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+        nameMethod = builderClass.getMethod("name", String.class);
+        factoryMethod = builderClass.getMethod("factory");
+        newThreadPerTaskExecutorMethod =
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      } catch (ClassNotFoundException | NoSuchMethodException ignored) {
+        factoryMethod = null;
+        newThreadPerTaskExecutorMethod = null;
+      }
+      ofVirtual = ofVirtualMethod;
+      name = nameMethod;
+      factory = factoryMethod;
+      newThreadPerTaskExecutor = newThreadPerTaskExecutorMethod;
+    }
+  }
+
   /** Attempt to match the host runtime to a capable Platform implementation.
    * 找到与平台匹配
    * */
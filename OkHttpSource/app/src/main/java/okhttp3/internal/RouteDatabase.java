@@ -15,8 +15,12 @@
  */
 package okhttp3.internal;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.net.Proxy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Address;
 import okhttp3.Route;
 
 /**
@@ -28,26 +32,233 @@ import okhttp3.Route;
  * 使用，OkHttp可以从自己的错误中学习：如果有一个失败的尝试连接
  * 一个特定的IP地址或代理服务器，失败是记住的，备用路由
  * 优先。
+ *
+ * <p>Beyond the blacklist this keeps a health score for each route, computed from its recent
+ * connect latencies and failure rate. Older observations decay with a half-life of {@link
+ * #HALF_LIFE_NANOS}, so a route that failed a while ago is tried again and a route that used to be
+ * fast has to stay fast to keep its rank. Routes without observations are scored as if they
+ * connected in {@link #DEFAULT_LATENCY_NANOS}.
  */
 public final class RouteDatabase {
-  private final Set<Route> failedRoutes = new LinkedHashSet<>();
+  /** How long it takes for an observation to count half as much. */
+  static final long HALF_LIFE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  /** The connect latency assumed for a route that hasn't been observed. */
+  static final long DEFAULT_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+  /** The score added by a failure rate of 100%: a failed connect is as bad as a 10 s connect. */
+  static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * The most routes tracked. Beyond this, routes whose observations have decayed away are
+   * forgotten, or if there are none, the route observed least recently.
+   */
+  static final int MAX_ROUTES = 256;
+
+  /** Route stats indexed by address and proxy. Entries are added and removed holding this. */
+  private final ConcurrentHashMap<RouteGroup, ConcurrentHashMap<Route, RouteStats>> routeStats =
+      new ConcurrentHashMap<>();
+  private int routeCount;
 
   /** Records a failure connecting to {@code failedRoute}. */
-  public synchronized void failed(Route failedRoute) {
-    failedRoutes.add(failedRoute);
+  public void failed(Route failedRoute) {
+    stats(failedRoute).failed(System.nanoTime());
   }
 
   /** Records success connecting to {@code failedRoute}. */
-  public synchronized void connected(Route route) {
-    failedRoutes.remove(route);
+  public void connected(Route route) {
+    stats(route).connected(System.nanoTime(), -1L);
+  }
+
+  /** Records success connecting to {@code route} after {@code connectNanos}. */
+  public void connected(Route route, long connectNanos) {
+    stats(route).connected(System.nanoTime(), connectNanos);
   }
 
   /** Returns true if {@code route} has failed recently and should be avoided. */
-  public synchronized boolean shouldPostpone(Route route) {
-    return failedRoutes.contains(route);
+  public boolean shouldPostpone(Route route) {
+    RouteStats stats = existingStats(route);
+    return stats != null && stats.shouldPostpone(System.nanoTime());
+  }
+
+  /**
+   * Returns the expected cost of connecting to {@code route}, in nanoseconds. Lower is better.
+   * 线路得分：近期连接耗时加上失败率的惩罚，越小越好
+   */
+  public long score(Route route) {
+    RouteStats stats = existingStats(route);
+    return stats != null ? stats.score(System.nanoTime()) : DEFAULT_LATENCY_NANOS;
+  }
+
+  /** Returns the best score of the routes to {@code address} through {@code proxy}. */
+  public long score(Address address, Proxy proxy) {
+    Map<Route, RouteStats> group = routeStats.get(new RouteGroup(address, proxy));
+    if (group == null || group.isEmpty()) return DEFAULT_LATENCY_NANOS;
+    long now = System.nanoTime();
+    long result = Long.MAX_VALUE;
+    for (RouteStats stats : group.values()) {
+      result = Math.min(result, stats.score(now));
+    }
+    return result;
+  }
+
+  public int failedRoutesCount() {
+    long now = System.nanoTime();
+    int result = 0;
+    for (Map<Route, RouteStats> group : routeStats.values()) {
+      for (RouteStats stats : group.values()) {
+        if (stats.shouldPostpone(now)) result++;
+      }
+    }
+    return result;
+  }
+
+  private RouteStats existingStats(Route route) {
+    Map<Route, RouteStats> group = routeStats.get(new RouteGroup(route.address(), route.proxy()));
+    return group != null ? group.get(route) : null;
+  }
+
+  private RouteStats stats(Route route) {
+    RouteStats result = existingStats(route);
+    if (result != null) return result;
+
+    synchronized (this) {
+      result = existingStats(route);
+      if (result != null) return result;
+
+      if (routeCount >= MAX_ROUTES) makeRoom(System.nanoTime());
+      RouteGroup key = new RouteGroup(route.address(), route.proxy());
+      ConcurrentHashMap<Route, RouteStats> group = routeStats.get(key);
+      if (group == null) {
+        group = new ConcurrentHashMap<>();
+        routeStats.put(key, group);
+      }
+      result = new RouteStats();
+      group.put(route, result);
+      routeCount++;
+      return result;
+    }
+  }
+
+  /** Forgets decayed routes or, if there are none, the route observed least recently. */
+  private void makeRoom(long now) {
+    assert (Thread.holdsLock(this));
+    Map<Route, RouteStats> oldestGroup = null;
+    Route oldestRoute = null;
+    long oldestObservedAtNanos = 0L;
+    for (Iterator<ConcurrentHashMap<Route, RouteStats>> g = routeStats.values().iterator();
+        g.hasNext(); ) {
+      Map<Route, RouteStats> group = g.next();
+      for (Iterator<Map.Entry<Route, RouteStats>> i = group.entrySet().iterator(); i.hasNext(); ) {
+        Map.Entry<Route, RouteStats> entry = i.next();
+        RouteStats stats = entry.getValue();
+        if (stats.isForgotten(now)) {
+          i.remove();
+          routeCount--;
+        } else if (oldestRoute == null || stats.observedAtNanos() - oldestObservedAtNanos < 0) {
+          oldestGroup = group;
+          oldestRoute = entry.getKey();
+          oldestObservedAtNanos = stats.observedAtNanos();
+        }
+      }
+      if (group.isEmpty()) g.remove();
+    }
+
+    if (routeCount >= MAX_ROUTES && oldestRoute != null) {
+      oldestGroup.remove(oldestRoute);
+      routeCount--;
+      if (oldestGroup.isEmpty()) {
+        routeStats.remove(new RouteGroup(oldestRoute.address(), oldestRoute.proxy()));
+      }
+    }
   }
 
-  public synchronized int failedRoutesCount() {
-    return failedRoutes.size();
+  /** The routes to one address through one proxy. */
+  private static final class RouteGroup {
+    private final Address address;
+    private final Proxy proxy;
+
+    RouteGroup(Address address, Proxy proxy) {
+      this.address = address;
+      this.proxy = proxy;
+    }
+
+    @Override public boolean equals(Object other) {
+      return other instanceof RouteGroup
+          && ((RouteGroup) other).address.equals(address)
+          && ((RouteGroup) other).proxy.equals(proxy);
+    }
+
+    @Override public int hashCode() {
+      return 31 * address.hashCode() + proxy.hashCode();
+    }
+  }
+
+  /**
+   * Time-decayed observations of one route. Each count and sum is multiplied by the decay factor
+   * for the time since it was last updated, so recent observations dominate.
+   */
+  private static final class RouteStats {
+    private long updatedAtNanos;
+    private long observedAtNanos;
+    private double successes;
+    private double failures;
+    private double latencyWeight;
+    private double latencySumNanos;
+    /** True if the most recent observation was a failure. */
+    private boolean lastFailed;
+
+    synchronized void failed(long now) {
+      decay(now);
+      observedAtNanos = now;
+      failures++;
+      lastFailed = true;
+    }
+
+    synchronized void connected(long now, long connectNanos) {
+      decay(now);
+      observedAtNanos = now;
+      successes++;
+      if (connectNanos >= 0) {
+        latencyWeight++;
+        latencySumNanos += connectNanos;
+      }
+      lastFailed = false;
+    }
+
+    /** Postpone a route while its latest attempt failed and failures dominate its history. */
+    synchronized boolean shouldPostpone(long now) {
+      decay(now);
+      return lastFailed && failures >= 0.5 && failures > successes;
+    }
+
+    synchronized long score(long now) {
+      decay(now);
+      // Each estimate is blended with one phantom observation of an unknown route, so that the
+      // score returns to the default as the observations decay.
+      double latency = (latencySumNanos + DEFAULT_LATENCY_NANOS) / (latencyWeight + 1);
+      double failureRate = failures / (successes + failures + 1);
+      return (long) (latency + failureRate * FAILURE_PENALTY_NANOS);
+    }
+
+    synchronized long observedAtNanos() {
+      return observedAtNanos;
+    }
+
+    synchronized boolean isForgotten(long now) {
+      decay(now);
+      return successes + failures < 0.01;
+    }
+
+    private void decay(long now) {
+      long elapsed = now - updatedAtNanos;
+      updatedAtNanos = now;
+      if (elapsed <= 0 || successes + failures == 0) return;
+      double factor = Math.pow(0.5, (double) elapsed / HALF_LIFE_NANOS);
+      successes *= factor;
+      failures *= factor;
+      latencyWeight *= factor;
+      latencySumNanos *= factor;
+    }
   }
 }
@@ -34,7 +34,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import okhttp3.HttpUrl;
@@ -238,6 +241,32 @@ public final class Util {
     return Collections.unmodifiableMap(new LinkedHashMap<>(map));
   }
 
+  /**
+   * Returns a thread factory for threads named {@code name}. If {@code virtual} is true and the
+   * runtime supports virtual threads those are created instead; they are always daemon threads.
+   */
+  public static ThreadFactory threadFactory(String name, boolean daemon, boolean virtual) {
+    if (virtual) {
+      ThreadFactory virtualThreadFactory = Platform.get().virtualThreadFactory(name);
+      if (virtualThreadFactory != null) return virtualThreadFactory;
+    }
+    return threadFactory(name, daemon);
+  }
+
+  /**
+   * Returns an executor that runs each task on a new virtual thread named {@code name}. If the
+   * runtime doesn't support virtual threads, tasks run on pooled daemon threads instead.
+   */
+  public static ExecutorService virtualThreadExecutor(String name) {
+    ThreadFactory virtualThreadFactory = Platform.get().virtualThreadFactory(name);
+    if (virtualThreadFactory != null) {
+      ExecutorService result = Platform.get().newThreadPerTaskExecutor(virtualThreadFactory);
+      if (result != null) return result;
+    }
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), threadFactory(name, true));
+  }
+
   public static ThreadFactory threadFactory(final String name, final boolean daemon) {
     return new ThreadFactory() {
       @Override public Thread newThread(Runnable runnable) {
@@ -21,7 +21,10 @@ import java.io.IOException;
 import java.util.List;
 import okio.Buffer;
 
-/** Writes transport frames for SPDY/3 or HTTP/2. */
+/**
+ * Writes transport frames for SPDY/3 or HTTP/2. Frames may be buffered until {@link #flush} is
+ * called, so that several frames can share a single socket write.
+ */
 public interface FrameWriter extends Closeable {
   /** HTTP/2 only. */
   void connectionPreface() throws IOException;
@@ -45,11 +48,15 @@ public interface FrameWriter extends Closeable {
   void pushPromise(int streamId, int promisedStreamId, List<Header> requestHeaders)
       throws IOException;
 
-  /** SPDY/3 only. */
+  /** Writes buffered frames to the socket. */
   void flush() throws IOException;
 
+  /**
+   * @param weight the stream's share of the connection relative to its siblings, between 1 and
+   * 256. SPDY/3 maps this onto its eight priority levels.
+   */
   void synStream(boolean outFinished, boolean inFinished, int streamId, int associatedStreamId,
-      List<Header> headerBlock) throws IOException;
+      int weight, List<Header> headerBlock) throws IOException;
 
   void synReply(boolean outFinished, int streamId, List<Header> headerBlock)
       throws IOException;
@@ -58,6 +65,13 @@ public interface FrameWriter extends Closeable {
 
   void rstStream(int streamId, ErrorCode errorCode) throws IOException;
 
+  /**
+   * HTTP/2 only. Changes the weight of {@code streamId} and makes it depend on {@code
+   * streamDependency}, or on no other stream if that is zero.
+   */
+  void priority(int streamId, int streamDependency, int weight, boolean exclusive)
+      throws IOException;
+
   /** The maximum size of bytes that may be sent in a single call to {@link #data}. */
   int maxDataLength();
 
@@ -20,16 +20,20 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import okhttp3.Protocol;
 import okhttp3.internal.NamedRunnable;
@@ -65,11 +69,33 @@ public final class FramedConnection implements Closeable {
   // frameWriter (to do blocking I/O) and this (to create streams). Such
   // operations must synchronize on 'this' last. This ensures that we never
   // wait for a blocking operation while holding 'this'.
+  //
+  // DATA frames are granted one at a time by a weighted scheduler guarded by
+  // 'this': a writer waits until its stream is the earliest in virtual time,
+  // then writes its frame without holding 'this'.
+  //
+  // Frames that the reader thread provokes (window updates, resets, pings and
+  // settings acks) are queued and written in batches by a single writer task
+  // that flushes once per batch.
+
+  /** Orders waiting writers by virtual time, breaking ties in favor of older streams. */
+  private static final Comparator<FramedStream> WRITE_PASS_ORDER = new Comparator<FramedStream>() {
+    @Override public int compare(FramedStream a, FramedStream b) {
+      if (a.writePass != b.writePass) return a.writePass < b.writePass ? -1 : 1;
+      return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+    }
+  };
 
-  private static final ExecutorService executor = new ThreadPoolExecutor(0,
+  private static final ExecutorService platformExecutor = new ThreadPoolExecutor(0,
       Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
       Util.threadFactory("OkHttp FramedConnection", true));
 
+  private static final ExecutorService virtualExecutor =
+      Util.virtualThreadExecutor("OkHttp FramedConnection");
+
+  /** Runs listener callbacks and deferred frame writes. Either a platform or a virtual executor. */
+  private final ExecutorService executor;
+
   /** The protocol variant, like {@link Spdy3}. */
   final Protocol protocol;
 
@@ -110,10 +136,61 @@ public final class FramedConnection implements Closeable {
   // Visible for testing
   long bytesLeftInWriteWindow;
 
+  /**
+   * Streams waiting to write a DATA frame or holding their place after writing one, earliest
+   * virtual time first. Guarded by this.
+   */
+  private final PriorityQueue<FramedStream> dataWriters =
+      new PriorityQueue<>(11, WRITE_PASS_ORDER);
+
+  /** How long a stream that just wrote a DATA frame keeps its place among waiting writers. */
+  private static final long DATA_TURN_LINGER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** True while a granted DATA frame is being written. Guarded by this. */
+  private boolean writingData;
+
+  /** The virtual time of the most recently granted DATA frame. Guarded by this. */
+  private long dataWritePass;
+
+  /** Frames waiting for {@link #writerRunnable}. Guarded by this. */
+  private final ArrayDeque<QueuedFrame> writeQueue = new ArrayDeque<>();
+
+  /** True while {@link #writerRunnable} is scheduled or running. Guarded by this. */
+  private boolean writerScheduled;
+
+  private final Writer writerRunnable;
+
+  /** Incremented by each call to {@link #flush}. */
+  private final AtomicLong flushRequests = new AtomicLong();
+
+  /** The highest flush request that a completed flush covered. Guarded by frameWriter. */
+  private long flushedThrough;
+
   /** Settings we communicate to the peer. */
   Settings okHttpSettings = new Settings();
 
-  private static final int OKHTTP_CLIENT_WINDOW_SIZE = 16 * 1024 * 1024;
+  private static final int OKHTTP_CLIENT_WINDOW_SIZE = 1024 * 1024;
+
+  /** The default ceiling for receive windows grown by bandwidth-delay product estimation. */
+  static final int DEFAULT_MAX_RECEIVE_WINDOW_SIZE = 16 * 1024 * 1024;
+
+  private static final int BDP_PING_PAYLOAD1 = 0x42445020; // ASCII "BDP "
+  private static final int BDP_PING_PAYLOAD2 = 0x70696e67; // ASCII "ping"
+
+  /** The largest receive window that BDP estimation may grow to. */
+  private final int maxReceiveWindowSize;
+
+  /** True from when a BDP ping is requested until its ack arrives. Guarded by this. */
+  private boolean bdpPingPending;
+
+  /** When the pending BDP ping was written. Guarded by this. */
+  private long bdpPingSentNanos;
+
+  /** Bytes of DATA received since the pending BDP ping was requested. Guarded by this. */
+  private long bdpBytesReceived;
+
+  /** The highest bandwidth observed by a BDP sample, in bytes per second. Guarded by this. */
+  private long bdpMaxBandwidth;
 
   /** Settings we receive from the peer. */
   // TODO: MWS will need to guard on this setting before attempting to push.
@@ -141,21 +218,25 @@ public final class FramedConnection implements Closeable {
     nextPingId = builder.client ? 1 : 2;
 
     // Flow control was designed more for servers, or proxies than edge clients.
-    // If we are a client, set the flow control window to 16MiB.  This avoids
-    // thrashing window updates every 64KiB, yet small enough to avoid blowing
-    // up the heap.
+    // If we are a client, start with a 1MiB flow control window. This avoids
+    // thrashing window updates every 64KiB. On HTTP/2 the window grows with
+    // the measured bandwidth-delay product, up to maxReceiveWindowSize.
+    maxReceiveWindowSize = builder.maxReceiveWindowSize;
     if (builder.client) {
       okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, OKHTTP_CLIENT_WINDOW_SIZE);
     }
 
     hostName = builder.hostName;
+    executor = builder.virtualThreads ? virtualExecutor : platformExecutor;
+    writerRunnable = new Writer();
 
     if (protocol == Protocol.HTTP_2) {
       variant = new Http2();
       // Like newSingleThreadExecutor, except lazy creates the thread.
       pushExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
           new LinkedBlockingQueue<Runnable>(),
-          Util.threadFactory(String.format("OkHttp %s Push Observer", hostName), true));
+          Util.threadFactory(String.format("OkHttp %s Push Observer", hostName), true,
+              builder.virtualThreads));
       // 1 less than SPDY http://tools.ietf.org/html/draft-ietf-httpbis-http2-17#section-6.9.2
       peerSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, 65535);
       peerSettings.set(Settings.MAX_FRAME_SIZE, 0, Http2.INITIAL_MAX_FRAME_SIZE);
@@ -170,7 +251,10 @@ public final class FramedConnection implements Closeable {
     frameWriter = variant.newWriter(builder.sink, client);
 
     readerRunnable = new Reader(variant.newReader(builder.source, client));
-    new Thread(readerRunnable).start(); // Not a daemon thread.
+    // Not a daemon thread, unless it is virtual.
+    Util.threadFactory(String.format("OkHttp %s", hostName), false, builder.virtualThreads)
+        .newThread(readerRunnable)
+        .start();
   }
 
   /** The protocol as selected using ALPN. */
@@ -191,6 +275,10 @@ public final class FramedConnection implements Closeable {
 
   synchronized FramedStream removeStream(int streamId) {
     FramedStream stream = streams.remove(streamId);
+    if (stream != null && stream.lingerUntilNanos != 0) {
+      dataWriters.remove(stream);
+      stream.lingerUntilNanos = 0;
+    }
     if (stream != null && streams.isEmpty()) {
       setIdle(true);
     }
@@ -207,6 +295,11 @@ public final class FramedConnection implements Closeable {
     return idleStartTimeNs != Long.MAX_VALUE;
   }
 
+  /** Returns true if no new streams may be created on this connection. */
+  public synchronized boolean isShutdown() {
+    return shutdown;
+  }
+
   public synchronized int maxConcurrentStreams() {
     return peerSettings.getMaxConcurrentStreams(Integer.MAX_VALUE);
   }
@@ -230,7 +323,8 @@ public final class FramedConnection implements Closeable {
       throws IOException {
     if (client) throw new IllegalStateException("Client cannot push requests.");
     if (protocol != Protocol.HTTP_2) throw new IllegalStateException("protocol != HTTP_2");
-    return newStream(associatedStreamId, requestHeaders, out, false);
+    return newStream(associatedStreamId, requestHeaders, out, false,
+        FramedStream.DEFAULT_WEIGHT);
   }
 
   /**
@@ -243,11 +337,24 @@ public final class FramedConnection implements Closeable {
    */
   public FramedStream newStream(List<Header> requestHeaders, boolean out, boolean in)
       throws IOException {
-    return newStream(0, requestHeaders, out, in);
+    return newStream(0, requestHeaders, out, in, FramedStream.DEFAULT_WEIGHT);
+  }
+
+  /**
+   * Returns a new locally-initiated stream that receives {@code weight} shares of this connection.
+   * See {@link FramedStream#setWeight}.
+   */
+  public FramedStream newStream(List<Header> requestHeaders, boolean out, boolean in, int weight)
+      throws IOException {
+    if (weight < 1 || weight > FramedStream.MAX_WEIGHT) {
+      throw new IllegalArgumentException(
+          "weight < 1 || weight > " + FramedStream.MAX_WEIGHT + ": " + weight);
+    }
+    return newStream(0, requestHeaders, out, in, weight);
   }
 
   private FramedStream newStream(int associatedStreamId, List<Header> requestHeaders, boolean out,
-      boolean in) throws IOException {
+      boolean in, int weight) throws IOException {
     boolean outFinished = !out;
     boolean inFinished = !in;
     FramedStream stream;
@@ -256,18 +363,19 @@ public final class FramedConnection implements Closeable {
     synchronized (frameWriter) {
       synchronized (this) {
         if (shutdown) {
-          throw new IOException("shutdown");
+          throw new ConnectionShutdownException();
         }
         streamId = nextStreamId;
         nextStreamId += 2;
         stream = new FramedStream(streamId, this, outFinished, inFinished, requestHeaders);
+        stream.weight = weight;
         if (stream.isOpen()) {
           streams.put(streamId, stream);
           setIdle(false);
         }
       }
       if (associatedStreamId == 0) {
-        frameWriter.synStream(outFinished, inFinished, streamId, associatedStreamId,
+        frameWriter.synStream(outFinished, inFinished, streamId, associatedStreamId, weight,
             requestHeaders);
       } else if (client) {
         throw new IllegalArgumentException("client streams shouldn't have associated stream IDs");
@@ -277,7 +385,7 @@ public final class FramedConnection implements Closeable {
     }
 
     if (!out) {
-      frameWriter.flush();
+      flush();
     }
 
     return stream;
@@ -297,6 +405,10 @@ public final class FramedConnection implements Closeable {
    * {@code HttpURLConnection} who flushes more bytes to the output stream than the connection's
    * write window will block.
    *
+   * <p>Concurrent writers take turns frame by frame in proportion to their streams' {@linkplain
+   * FramedStream#setWeight weights}, so a large upload cannot starve a small request that shares
+   * the connection.
+   *
    * <p>Zero {@code byteCount} writes are not subject to flow control and will not block. The only
    * use case for zero {@code byteCount} is closing a flushed output stream.
    */
@@ -309,27 +421,96 @@ public final class FramedConnection implements Closeable {
 
     while (byteCount > 0) {
       int toWrite;
+      FramedStream stream;
       synchronized (FramedConnection.this) {
-        try {
-          while (bytesLeftInWriteWindow <= 0) {
-            // Before blocking, confirm that the stream we're writing is still open. It's possible
-            // that the stream has since been closed (such as if this write timed out.)
-            if (!streams.containsKey(streamId)) {
-              throw new IOException("stream closed");
-            }
-            FramedConnection.this.wait(); // Wait until we receive a WINDOW_UPDATE.
-          }
-        } catch (InterruptedException e) {
-          throw new InterruptedIOException();
-        }
-
+        stream = awaitDataTurn(streamId);
         toWrite = (int) Math.min(byteCount, bytesLeftInWriteWindow);
         toWrite = Math.min(toWrite, frameWriter.maxDataLength());
         bytesLeftInWriteWindow -= toWrite;
+        dataWritePass = stream.writePass;
+        stream.writePass += (long) toWrite * FramedStream.MAX_WEIGHT / stream.weight;
+        writingData = true;
       }
 
       byteCount -= toWrite;
-      frameWriter.data(outFinished && byteCount == 0, streamId, buffer, toWrite);
+      boolean finished = outFinished && byteCount == 0;
+      boolean written = false;
+      try {
+        frameWriter.data(finished, streamId, buffer, toWrite);
+        written = true;
+      } finally {
+        synchronized (FramedConnection.this) {
+          writingData = false;
+          // Writers return to the application between frames to produce more data. Hold this
+          // stream's place briefly so it isn't passed over in the meantime.
+          if (written && !finished) {
+            stream.lingerUntilNanos = System.nanoTime() + DATA_TURN_LINGER_NANOS;
+            dataWriters.add(stream);
+          }
+          FramedConnection.this.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits until {@code streamId} may write the next DATA frame: the connection has a write window,
+   * no other frame is being written, and no other stream is earlier in virtual time. Streams that
+   * have just written a frame hold their place for {@link #DATA_TURN_LINGER_NANOS}.
+   */
+  private FramedStream awaitDataTurn(int streamId) throws IOException {
+    FramedStream stream = streams.get(streamId);
+    if (stream == null) throw new IOException("stream closed");
+
+    if (stream.lingerUntilNanos != 0) {
+      stream.lingerUntilNanos = 0; // Already queued; resume our place.
+    } else {
+      // A stream that was idle resumes at the current virtual time, not with saved-up credit.
+      stream.writePass = Math.max(stream.writePass, dataWritePass);
+      dataWriters.add(stream);
+    }
+
+    boolean granted = false;
+    try {
+      while (true) {
+        FramedStream head = dataWriters.peek();
+        long waitNanos = 0L;
+        if (head != stream && head.lingerUntilNanos != 0) {
+          waitNanos = head.lingerUntilNanos - System.nanoTime();
+          if (waitNanos <= 0L) {
+            dataWriters.poll(); // The head didn't come back for its turn.
+            head.lingerUntilNanos = 0;
+            continue;
+          }
+        }
+        if (bytesLeftInWriteWindow > 0 && !writingData && head == stream) break;
+
+        // Before blocking, confirm that the stream we're writing is still open. It's possible
+        // that the stream has since been closed (such as if this write timed out.)
+        if (!streams.containsKey(streamId)) {
+          throw new IOException("stream closed");
+        }
+        if (waitNanos > 0L && bytesLeftInWriteWindow > 0 && !writingData) {
+          FramedConnection.this.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        } else {
+          FramedConnection.this.wait(); // Wait for a WINDOW_UPDATE or for our turn.
+        }
+      }
+      granted = true;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } finally {
+      dataWriters.remove(stream);
+      if (!granted) FramedConnection.this.notifyAll(); // Another stream may now be first.
+    }
+    return stream;
+  }
+
+  /** Sends a {@code PRIORITY} frame making {@code streamId} a dependency of the root. */
+  void writePriority(int streamId, int weight) throws IOException {
+    synchronized (frameWriter) {
+      frameWriter.priority(streamId, 0, weight, false);
+      flushLocked();
     }
   }
 
@@ -342,31 +523,85 @@ public final class FramedConnection implements Closeable {
   }
 
   void writeSynResetLater(final int streamId, final ErrorCode errorCode) {
-    executor.submit(new NamedRunnable("OkHttp %s stream %d", hostName, streamId) {
-      @Override public void execute() {
-        try {
-          writeSynReset(streamId, errorCode);
-        } catch (IOException ignored) {
-        }
+    writeLater(new QueuedFrame() {
+      @Override void write() throws IOException {
+        frameWriter.rstStream(streamId, errorCode);
       }
     });
   }
 
   void writeSynReset(int streamId, ErrorCode statusCode) throws IOException {
-    frameWriter.rstStream(streamId, statusCode);
+    synchronized (frameWriter) {
+      frameWriter.rstStream(streamId, statusCode);
+      flushLocked();
+    }
   }
 
   void writeWindowUpdateLater(final int streamId, final long unacknowledgedBytesRead) {
-    executor.execute(new NamedRunnable("OkHttp Window Update %s stream %d", hostName, streamId) {
-      @Override public void execute() {
-        try {
-          frameWriter.windowUpdate(streamId, unacknowledgedBytesRead);
-        } catch (IOException ignored) {
-        }
+    writeLater(new QueuedFrame() {
+      @Override void write() throws IOException {
+        frameWriter.windowUpdate(streamId, unacknowledgedBytesRead);
       }
     });
   }
 
+  /**
+   * Enqueues {@code frame} for the writer task, starting that task if it isn't already running.
+   * Frames are written in the order they are enqueued.
+   */
+  private void writeLater(QueuedFrame frame) {
+    synchronized (this) {
+      writeQueue.add(frame);
+      if (writerScheduled) return;
+      writerScheduled = true;
+    }
+    executor.execute(writerRunnable);
+  }
+
+  /** A frame written by the writer task. Implementations are called holding frameWriter. */
+  private abstract static class QueuedFrame {
+    abstract void write() throws IOException;
+  }
+
+  /**
+   * Writes queued frames until the queue is empty, then flushes them in a single socket write. If a
+   * write fails the connection is broken; the remaining frames are discarded.
+   */
+  private final class Writer extends NamedRunnable {
+    Writer() {
+      super("OkHttp %s Writer", hostName);
+    }
+
+    @Override protected void execute() {
+      boolean drained = false;
+      try {
+        synchronized (frameWriter) {
+          while (true) {
+            QueuedFrame frame;
+            synchronized (FramedConnection.this) {
+              frame = writeQueue.poll();
+              if (frame == null) {
+                writerScheduled = false;
+                drained = true;
+                break;
+              }
+            }
+            frame.write();
+          }
+          flushLocked();
+        }
+      } catch (IOException ignored) {
+      } finally {
+        if (!drained) {
+          synchronized (FramedConnection.this) {
+            writeQueue.clear();
+            writerScheduled = false;
+          }
+        }
+      }
+    }
+  }
+
   /**
    * Sends a ping frame to the peer. Use the returned object to await the ping's response and
    * observe its round trip time.
@@ -389,13 +624,94 @@ public final class FramedConnection implements Closeable {
 
   private void writePingLater(
       final boolean reply, final int payload1, final int payload2, final Ping ping) {
-    executor.execute(new NamedRunnable("OkHttp %s ping %08x%08x",
-        hostName, payload1, payload2) {
-      @Override public void execute() {
-        try {
-          writePing(reply, payload1, payload2, ping);
-        } catch (IOException ignored) {
+    writeLater(new QueuedFrame() {
+      @Override void write() throws IOException {
+        if (ping != null) ping.send();
+        frameWriter.ping(reply, payload1, payload2);
+      }
+    });
+  }
+
+  /**
+   * Samples the bandwidth-delay product of HTTP/2 connections. When DATA arrives and no sample is
+   * in progress, this sends a PING and counts the bytes received until its ack returns. That count
+   * approximates how much data the peer can have in flight; if it nearly fills the receive window,
+   * the window is what limits throughput.
+   */
+  private void receivedData(int byteCount) {
+    if (protocol != Protocol.HTTP_2) return;
+    synchronized (this) {
+      if (shutdown) return;
+      bdpBytesReceived += byteCount;
+      if (bdpPingPending) return;
+      if (okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE)
+          >= maxReceiveWindowSize) {
+        return; // The window can't grow any further.
+      }
+      bdpPingPending = true;
+      bdpBytesReceived = byteCount;
+    }
+    writeLater(new QueuedFrame() {
+      @Override void write() throws IOException {
+        synchronized (FramedConnection.this) {
+          bdpPingSentNanos = System.nanoTime(); // Immediately before performing I/O.
+        }
+        frameWriter.ping(false, BDP_PING_PAYLOAD1, BDP_PING_PAYLOAD2);
+      }
+    });
+  }
+
+  /**
+   * Completes a BDP sample. If the bytes received during the ping's round trip filled at least two
+   * thirds of the receive window and bandwidth is at its observed peak, the window is doubled
+   * relative to the sample. Rising round trip times with flat bandwidth are queueing, and don't
+   * grow the window.
+   */
+  private void bdpPingAcked() {
+    int newWindowSize;
+    synchronized (this) {
+      if (!bdpPingPending) return;
+      long roundTripNanos = Math.max(1L, System.nanoTime() - bdpPingSentNanos);
+      long sample = bdpBytesReceived;
+      bdpPingPending = false;
+      bdpBytesReceived = 0;
+
+      long bandwidth = sample * 1000000000L / roundTripNanos;
+      if (bandwidth > bdpMaxBandwidth) bdpMaxBandwidth = bandwidth;
+
+      int windowSize = okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE);
+      if (sample < windowSize * 2L / 3L || bandwidth < bdpMaxBandwidth) return;
+      newWindowSize = (int) Math.min(maxReceiveWindowSize, sample * 2L);
+      if (newWindowSize <= windowSize) return;
+    }
+    growReceiveWindowLater(newWindowSize);
+  }
+
+  /**
+   * Raises the receive window of the connection and of every stream to {@code newWindowSize}. The
+   * streams learn of it by a SETTINGS frame and the connection by a WINDOW_UPDATE.
+   */
+  private void growReceiveWindowLater(final int newWindowSize) {
+    writeLater(new QueuedFrame() {
+      @Override void write() throws IOException {
+        int delta;
+        FramedStream[] streamsToGrow;
+        synchronized (FramedConnection.this) {
+          if (shutdown) return;
+          int windowSize = okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE);
+          if (newWindowSize <= windowSize) return;
+          delta = newWindowSize - windowSize;
+          okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, newWindowSize);
+          streamsToGrow = streams.values().toArray(new FramedStream[streams.size()]);
+        }
+        // Accept the extra data before the peer may send it.
+        for (FramedStream stream : streamsToGrow) {
+          synchronized (stream) {
+            stream.addBytesToReadWindow(delta);
+          }
         }
+        frameWriter.settings(new Settings().set(Settings.INITIAL_WINDOW_SIZE, 0, newWindowSize));
+        frameWriter.windowUpdate(0, delta);
       }
     });
   }
@@ -405,6 +721,7 @@ public final class FramedConnection implements Closeable {
       // Observe the sent time immediately before performing I/O.
       if (ping != null) ping.send();
       frameWriter.ping(reply, payload1, payload2);
+      flushLocked();
     }
   }
 
@@ -412,8 +729,24 @@ public final class FramedConnection implements Closeable {
     return pings != null ? pings.remove(id) : null;
   }
 
+  /**
+   * Writes buffered frames to the socket. Concurrent callers share flushes: a caller whose frames
+   * were already written when another caller's flush began returns without flushing again.
+   */
   public void flush() throws IOException {
+    long request = flushRequests.incrementAndGet();
+    synchronized (frameWriter) {
+      if (flushedThrough >= request) return; // Another thread's flush covered our frames.
+      flushLocked();
+    }
+  }
+
+  /** Flushes the frame writer and records which flush requests that covered. */
+  private void flushLocked() throws IOException {
+    assert (Thread.holdsLock(frameWriter));
+    long through = flushRequests.get();
     frameWriter.flush();
+    flushedThrough = through;
   }
 
   /**
@@ -505,11 +838,14 @@ public final class FramedConnection implements Closeable {
    * {@link Builder#build} for all new connections.
    */
   public void sendConnectionPreface() throws IOException {
-    frameWriter.connectionPreface();
-    frameWriter.settings(okHttpSettings);
-    int windowSize = okHttpSettings.getInitialWindowSize(Settings.DEFAULT_INITIAL_WINDOW_SIZE);
-    if (windowSize != Settings.DEFAULT_INITIAL_WINDOW_SIZE) {
-      frameWriter.windowUpdate(0, windowSize - Settings.DEFAULT_INITIAL_WINDOW_SIZE);
+    synchronized (frameWriter) {
+      frameWriter.connectionPreface();
+      frameWriter.settings(okHttpSettings);
+      int windowSize = okHttpSettings.getInitialWindowSize(Settings.DEFAULT_INITIAL_WINDOW_SIZE);
+      if (windowSize != Settings.DEFAULT_INITIAL_WINDOW_SIZE) {
+        frameWriter.windowUpdate(0, windowSize - Settings.DEFAULT_INITIAL_WINDOW_SIZE);
+      }
+      flushLocked();
     }
   }
 
@@ -523,6 +859,7 @@ public final class FramedConnection implements Closeable {
         okHttpSettings.merge(settings);
         frameWriter.settings(settings);
       }
+      flushLocked();
     }
   }
 
@@ -535,6 +872,8 @@ public final class FramedConnection implements Closeable {
     private Protocol protocol = Protocol.SPDY_3;
     private PushObserver pushObserver = PushObserver.CANCEL;
     private boolean client;
+    private boolean virtualThreads;
+    private int maxReceiveWindowSize = DEFAULT_MAX_RECEIVE_WINDOW_SIZE;
 
     /**
      * @param client true if this peer initiated the connection; false if this peer accepted the
@@ -573,6 +912,27 @@ public final class FramedConnection implements Closeable {
       return this;
     }
 
+    /**
+     * Run the reader loop, push observer and other background work on virtual threads if the
+     * runtime supports them.
+     */
+    public Builder virtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return this;
+    }
+
+    /**
+     * Limits how far HTTP/2 receive windows may grow to keep up with fast, distant peers. Each
+     * stream may buffer this many unread bytes, so this bounds memory use.
+     */
+    public Builder maxReceiveWindowSize(int maxReceiveWindowSize) {
+      if (maxReceiveWindowSize < DEFAULT_INITIAL_WINDOW_SIZE) {
+        throw new IllegalArgumentException("maxReceiveWindowSize < " + DEFAULT_INITIAL_WINDOW_SIZE);
+      }
+      this.maxReceiveWindowSize = maxReceiveWindowSize;
+      return this;
+    }
+
     public FramedConnection build() throws IOException {
       return new FramedConnection(this);
     }
@@ -615,6 +975,7 @@ public final class FramedConnection implements Closeable {
 
     @Override public void data(boolean inFinished, int streamId, BufferedSource source, int length)
         throws IOException {
+      receivedData(length);
       if (pushedStream(streamId)) {
         pushDataLater(streamId, source, length, inFinished);
         return;
@@ -740,12 +1101,9 @@ public final class FramedConnection implements Closeable {
     }
 
     private void ackSettingsLater(final Settings peerSettings) {
-      executor.execute(new NamedRunnable("OkHttp %s ACK Settings", hostName) {
-        @Override public void execute() {
-          try {
-            frameWriter.ackSettings(peerSettings);
-          } catch (IOException ignored) {
-          }
+      writeLater(new QueuedFrame() {
+        @Override void write() throws IOException {
+          frameWriter.ackSettings(peerSettings);
         }
       });
     }
@@ -755,7 +1113,9 @@ public final class FramedConnection implements Closeable {
     }
 
     @Override public void ping(boolean reply, int payload1, int payload2) {
-      if (reply) {
+      if (reply && payload1 == BDP_PING_PAYLOAD1 && payload2 == BDP_PING_PAYLOAD2) {
+        bdpPingAcked();
+      } else if (reply) {
         Ping ping = removePing(payload1);
         if (ping != null) {
           ping.receive();
@@ -784,6 +1144,12 @@ public final class FramedConnection implements Closeable {
           removeStream(framedStream.getId());
         }
       }
+
+      executor.execute(new NamedRunnable("OkHttp %s GOAWAY", hostName) {
+        @Override public void execute() {
+          listener.onGoAway(FramedConnection.this);
+        }
+      });
     }
 
     @Override public void windowUpdate(int streamId, long windowSizeIncrement) {
@@ -804,7 +1170,11 @@ public final class FramedConnection implements Closeable {
 
     @Override public void priority(int streamId, int streamDependency, int weight,
         boolean exclusive) {
-      // TODO: honor priority.
+      // Honor the weight. Dependencies are flattened: every stream shares the connection directly.
+      synchronized (FramedConnection.this) {
+        FramedStream stream = streams.get(streamId);
+        if (stream != null) stream.weight = weight;
+      }
     }
 
     @Override
@@ -837,14 +1207,11 @@ public final class FramedConnection implements Closeable {
     pushExecutor.execute(new NamedRunnable("OkHttp %s Push Request[%s]", hostName, streamId) {
       @Override public void execute() {
         boolean cancel = pushObserver.onRequest(streamId, requestHeaders);
-        try {
-          if (cancel) {
-            frameWriter.rstStream(streamId, ErrorCode.CANCEL);
-            synchronized (FramedConnection.this) {
-              currentPushRequests.remove(streamId);
-            }
+        if (cancel) {
+          writeSynResetLater(streamId, ErrorCode.CANCEL);
+          synchronized (FramedConnection.this) {
+            currentPushRequests.remove(streamId);
           }
-        } catch (IOException ignored) {
         }
       }
     });
@@ -855,14 +1222,11 @@ public final class FramedConnection implements Closeable {
     pushExecutor.execute(new NamedRunnable("OkHttp %s Push Headers[%s]", hostName, streamId) {
       @Override public void execute() {
         boolean cancel = pushObserver.onHeaders(streamId, requestHeaders, inFinished);
-        try {
-          if (cancel) frameWriter.rstStream(streamId, ErrorCode.CANCEL);
-          if (cancel || inFinished) {
-            synchronized (FramedConnection.this) {
-              currentPushRequests.remove(streamId);
-            }
+        if (cancel) writeSynResetLater(streamId, ErrorCode.CANCEL);
+        if (cancel || inFinished) {
+          synchronized (FramedConnection.this) {
+            currentPushRequests.remove(streamId);
           }
-        } catch (IOException ignored) {
         }
       }
     });
@@ -882,7 +1246,7 @@ public final class FramedConnection implements Closeable {
       @Override public void execute() {
         try {
           boolean cancel = pushObserver.onData(streamId, buffer, byteCount, inFinished);
-          if (cancel) frameWriter.rstStream(streamId, ErrorCode.CANCEL);
+          if (cancel) writeSynResetLater(streamId, ErrorCode.CANCEL);
           if (cancel || inFinished) {
             synchronized (FramedConnection.this) {
               currentPushRequests.remove(streamId);
@@ -930,5 +1294,13 @@ public final class FramedConnection implements Closeable {
      */
     public void onSettings(FramedConnection connection) {
     }
+
+    /**
+     * Notification that the connection's peer is going away. The connection no longer accepts new
+     * streams, and streams the peer won't process have already failed with {@link
+     * ErrorCode#REFUSED_STREAM}. Streams the peer accepted continue until they complete.
+     */
+    public void onGoAway(FramedConnection connection) {
+    }
   }
 }
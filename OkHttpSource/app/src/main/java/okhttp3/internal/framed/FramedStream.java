@@ -16,7 +16,6 @@
 
 package okhttp3.internal.framed;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
@@ -36,6 +35,12 @@ public final class FramedStream {
   // Internal state is guarded by this. No long-running or potentially
   // blocking operations are performed while the lock is held.
 
+  /** The weight of streams that were not prioritized, as specified by HTTP/2. */
+  public static final int DEFAULT_WEIGHT = 16;
+
+  /** The largest weight a stream may have. */
+  public static final int MAX_WEIGHT = 256;
+
   /**
    * The total number of bytes consumed by the application (with {@link FramedDataSource#read}), but
    * not yet acknowledged by sending a {@code WINDOW_UPDATE} frame on this stream.
@@ -54,6 +59,22 @@ public final class FramedStream {
   private final int id;
   private final FramedConnection connection;
 
+  /** This stream's share of the connection's outgoing DATA frames. Guarded by connection. */
+  int weight = DEFAULT_WEIGHT;
+
+  /**
+   * The virtual time at which this stream may write its next DATA frame. It advances by the size
+   * of each frame divided by {@link #weight}, so heavier streams get proportionally more frames.
+   * Guarded by connection.
+   */
+  long writePass;
+
+  /**
+   * While nonzero, this stream holds its place among the connection's DATA writers until this
+   * {@link System#nanoTime} deadline. Guarded by connection.
+   */
+  long lingerUntilNanos;
+
   /** Headers sent by the stream initiator. Immutable and non null. */
   private final List<Header> requestHeaders;
 
@@ -125,6 +146,31 @@ public final class FramedStream {
     return connection;
   }
 
+  public int getWeight() {
+    synchronized (connection) {
+      return weight;
+    }
+  }
+
+  /**
+   * Changes this stream's share of the connection's outgoing data relative to other streams. A
+   * stream of weight 64 sends four DATA frames for every frame of a concurrent stream of weight 16.
+   * On HTTP/2 the peer is informed with a {@code PRIORITY} frame so it can schedule its responses
+   * the same way.
+   *
+   * @param weight between 1 and {@link #MAX_WEIGHT}.
+   */
+  public void setWeight(int weight) throws IOException {
+    if (weight < 1 || weight > MAX_WEIGHT) {
+      throw new IllegalArgumentException("weight < 1 || weight > " + MAX_WEIGHT + ": " + weight);
+    }
+    synchronized (connection) {
+      if (this.weight == weight) return;
+      this.weight = weight;
+    }
+    connection.writePriority(id, weight);
+  }
+
   public List<Header> getRequestHeaders() {
     return requestHeaders;
   }
@@ -143,7 +189,7 @@ public final class FramedStream {
       readTimeout.exitAndThrowIfTimedOut();
     }
     if (responseHeaders != null) return responseHeaders;
-    throw new IOException("stream was reset: " + errorCode);
+    throw new StreamResetException(errorCode);
   }
 
   /**
@@ -312,14 +358,17 @@ public final class FramedStream {
    * readers.
    */
   private final class FramedDataSource implements Source {
-    /** Buffer to receive data from the network into. Only accessed by the reader thread. */
-    private final Buffer receiveBuffer = new Buffer();
-
-    /** Buffer with readable data. Guarded by FramedStream.this. */
+    /**
+     * Buffer with readable data. Segments of DATA frames are moved here from the connection's
+     * source without copying. Guarded by FramedStream.this.
+     */
     private final Buffer readBuffer = new Buffer();
 
-    /** Maximum number of bytes to buffer before reporting a flow control error. */
-    private final long maxByteCount;
+    /**
+     * Maximum number of bytes to buffer before reporting a flow control error. Guarded by
+     * FramedStream.this.
+     */
+    private long maxByteCount;
 
     /** True if the caller has closed this stream. */
     private boolean closed;
@@ -384,39 +433,37 @@ public final class FramedStream {
     void receive(BufferedSource in, long byteCount) throws IOException {
       assert (!Thread.holdsLock(FramedStream.this));
 
-      while (byteCount > 0) {
-        boolean finished;
-        boolean flowControlError;
-        synchronized (FramedStream.this) {
-          finished = this.finished;
-          flowControlError = byteCount + readBuffer.size() > maxByteCount;
-        }
+      boolean finished;
+      boolean flowControlError;
+      synchronized (FramedStream.this) {
+        finished = this.finished;
+        flowControlError = byteCount + readBuffer.size() > maxByteCount;
+      }
 
-        // If the peer sends more data than we can handle, discard it and close the connection.
-        if (flowControlError) {
-          in.skip(byteCount);
-          closeLater(ErrorCode.FLOW_CONTROL_ERROR);
-          return;
-        }
+      // If the peer sends more data than we can handle, discard it and close the connection.
+      if (flowControlError) {
+        in.skip(byteCount);
+        closeLater(ErrorCode.FLOW_CONTROL_ERROR);
+        return;
+      }
 
-        // Discard data received after the stream is finished. It's probably a benign race.
-        if (finished) {
-          in.skip(byteCount);
-          return;
-        }
+      // Discard data received after the stream is finished. It's probably a benign race.
+      if (finished) {
+        in.skip(byteCount);
+        return;
+      }
 
-        // Fill the receive buffer without holding any locks.
-        long read = in.read(receiveBuffer, byteCount);
-        if (read == -1) throw new EOFException();
-        byteCount -= read;
-
-        // Move the received data to the read buffer to the reader can read it.
-        synchronized (FramedStream.this) {
-          boolean wasEmpty = readBuffer.size() == 0;
-          readBuffer.writeAll(receiveBuffer);
-          if (wasEmpty) {
-            FramedStream.this.notifyAll();
-          }
+      // Read the whole frame from the socket without holding any locks. The flow-control check
+      // above bounds how much this buffers; the reader never waits for the application.
+      in.require(byteCount);
+
+      // Move the frame's segments to the read buffer so the reader can read it. This reassigns
+      // segments rather than copying bytes, except to split or compact partial segments.
+      synchronized (FramedStream.this) {
+        boolean wasEmpty = readBuffer.size() == 0;
+        readBuffer.write(in.buffer(), byteCount);
+        if (wasEmpty) {
+          FramedStream.this.notifyAll();
         }
       }
     }
@@ -439,7 +486,7 @@ public final class FramedStream {
         throw new IOException("stream closed");
       }
       if (errorCode != null) {
-        throw new IOException("stream was reset: " + errorCode);
+        throw new StreamResetException(errorCode);
       }
     }
   }
@@ -558,6 +605,11 @@ public final class FramedStream {
     }
   }
 
+  /** Accepts {@code delta} more unread bytes after our initial window was raised. */
+  void addBytesToReadWindow(long delta) {
+    source.maxByteCount += delta;
+  }
+
   /**
    * {@code delta} will be negative if a settings frame initial window is smaller than the last.
    */
@@ -572,7 +624,7 @@ public final class FramedStream {
     } else if (sink.finished) {
       throw new IOException("stream finished");
     } else if (errorCode != null) {
-      throw new IOException("stream was reset: " + errorCode);
+      throw new StreamResetException(errorCode);
     }
   }
 
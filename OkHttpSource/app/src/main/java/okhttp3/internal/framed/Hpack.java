@@ -115,6 +115,8 @@ final class Hpack {
 
     private final List<Header> headerList = new ArrayList<>();
     private final BufferedSource source;
+    /** Huffman decoded strings are staged here. Always empty between reads. */
+    private final Buffer huffmanBuffer = new Buffer();
 
     private int headerTableSizeSetting;
     private int maxDynamicTableByteCount;
@@ -159,7 +161,6 @@ final class Hpack {
     }
 
     private void clearDynamicTable() {
-      headerList.clear();
       Arrays.fill(dynamicTable, null);
       nextHeaderIndex = dynamicTable.length - 1;
       headerCount = 0;
@@ -347,7 +348,8 @@ final class Hpack {
       int length = readInt(firstByte, PREFIX_7_BITS);
 
       if (huffmanDecode) {
-        return ByteString.of(Huffman.get().decode(source.readByteArray(length)));
+        Huffman.get().decode(source, length, huffmanBuffer);
+        return huffmanBuffer.readByteString();
       } else {
         return source.readByteString(length);
       }
@@ -367,31 +369,199 @@ final class Hpack {
   }
 
   static final class Writer {
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 4096;
+
+    /**
+     * The decoder can ask for a table of up to 4 GiB. We cap ours to save memory: beyond this size
+     * a bigger table hardly saves any bytes.
+     */
+    private static final int SETTINGS_HEADER_TABLE_SIZE_LIMIT = 16384;
+
+    /** Cookies shorter than this are easy to guess, so they're never indexed. */
+    private static final int SENSITIVE_COOKIE_MAX_SIZE = 20;
+
+    private static final ByteString AUTHORIZATION = ByteString.encodeUtf8("authorization");
+    private static final ByteString PROXY_AUTHORIZATION =
+        ByteString.encodeUtf8("proxy-authorization");
+    private static final ByteString COOKIE = ByteString.encodeUtf8("cookie");
+
     private final Buffer out;
 
+    /**
+     * In the scenario where the dynamic table size changes multiple times between transmission of
+     * header blocks, we need to keep track of the smallest value in that interval.
+     */
+    private int smallestHeaderTableSizeSetting = Integer.MAX_VALUE;
+    private boolean emitDynamicTableSizeUpdate;
+
+    int headerTableSizeSetting;
+    int maxDynamicTableByteCount;
+
+    // Visible for testing.
+    Header[] dynamicTable = new Header[8];
+    // Array is populated back to front, so new entries always have lowest index.
+    int nextHeaderIndex = dynamicTable.length - 1;
+    int headerCount = 0;
+    int dynamicTableByteCount = 0;
+
     Writer(Buffer out) {
+      this(SETTINGS_HEADER_TABLE_SIZE, out);
+    }
+
+    Writer(int headerTableSizeSetting, Buffer out) {
+      this.headerTableSizeSetting = headerTableSizeSetting;
+      this.maxDynamicTableByteCount = headerTableSizeSetting;
       this.out = out;
     }
 
-    /** This does not use "never indexed" semantics for sensitive headers. */
+    private void clearDynamicTable() {
+      Arrays.fill(dynamicTable, null);
+      nextHeaderIndex = dynamicTable.length - 1;
+      headerCount = 0;
+      dynamicTableByteCount = 0;
+    }
+
+    /** Returns the count of entries evicted. */
+    private int evictToRecoverBytes(int bytesToRecover) {
+      int entriesToEvict = 0;
+      if (bytesToRecover > 0) {
+        // determine how many headers need to be evicted.
+        for (int j = dynamicTable.length - 1; j >= nextHeaderIndex && bytesToRecover > 0; j--) {
+          bytesToRecover -= dynamicTable[j].hpackSize;
+          dynamicTableByteCount -= dynamicTable[j].hpackSize;
+          headerCount--;
+          entriesToEvict++;
+        }
+        System.arraycopy(dynamicTable, nextHeaderIndex + 1, dynamicTable,
+            nextHeaderIndex + 1 + entriesToEvict, headerCount);
+        Arrays.fill(dynamicTable, nextHeaderIndex + 1, nextHeaderIndex + 1 + entriesToEvict, null);
+        nextHeaderIndex += entriesToEvict;
+      }
+      return entriesToEvict;
+    }
+
+    private void insertIntoDynamicTable(Header entry) {
+      int delta = entry.hpackSize;
+
+      // if the new or replacement header is too big, drop all entries.
+      if (delta > maxDynamicTableByteCount) {
+        clearDynamicTable();
+        return;
+      }
+
+      // Evict headers to the required length.
+      int bytesToRecover = (dynamicTableByteCount + delta) - maxDynamicTableByteCount;
+      evictToRecoverBytes(bytesToRecover);
+
+      if (headerCount + 1 > dynamicTable.length) { // Need to grow the dynamic table.
+        Header[] doubled = new Header[dynamicTable.length * 2];
+        System.arraycopy(dynamicTable, 0, doubled, dynamicTable.length, dynamicTable.length);
+        nextHeaderIndex = dynamicTable.length - 1;
+        dynamicTable = doubled;
+      }
+      int index = nextHeaderIndex--;
+      dynamicTable[index] = entry;
+      headerCount++;
+      dynamicTableByteCount += delta;
+    }
+
+    /**
+     * Writes {@code headerBlock}, referring to the static and dynamic tables where they hold the
+     * header, and adding new headers to the dynamic table so that later header blocks on this
+     * connection can refer to them. 维护编码端的动态表，重复的头部只需发送索引
+     *
+     * <p>Credentials are written with "never indexed" semantics so that neither this encoder nor
+     * any intermediary compresses them: compressing secrets alongside attacker-chosen headers
+     * leaks them. Pseudo headers other than {@code :authority} change per request and aren't
+     * indexed either.
+     */
     // http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-12#section-6.2.3
     void writeHeaders(List<Header> headerBlock) throws IOException {
-      // TODO: implement index tracking
+      if (emitDynamicTableSizeUpdate) {
+        if (smallestHeaderTableSizeSetting < maxDynamicTableByteCount) {
+          // Multiple dynamic table size updates!
+          writeInt(smallestHeaderTableSizeSetting, PREFIX_5_BITS, 0x20);
+        }
+        emitDynamicTableSizeUpdate = false;
+        smallestHeaderTableSizeSetting = Integer.MAX_VALUE;
+        writeInt(maxDynamicTableByteCount, PREFIX_5_BITS, 0x20);
+      }
+
       for (int i = 0, size = headerBlock.size(); i < size; i++) {
-        ByteString name = headerBlock.get(i).name.toAsciiLowercase();
+        Header header = headerBlock.get(i);
+        ByteString name = header.name.toAsciiLowercase();
+        ByteString value = header.value;
+        int headerIndex = -1;
+        int headerNameIndex = -1;
+
         Integer staticIndex = NAME_TO_FIRST_INDEX.get(name);
         if (staticIndex != null) {
-          // Literal Header Field without Indexing - Indexed Name.
-          writeInt(staticIndex + 1, PREFIX_4_BITS, 0);
-          writeByteString(headerBlock.get(i).value);
-        } else {
-          out.writeByte(0x00); // Literal Header without Indexing - New Name.
+          headerNameIndex = staticIndex + 1;
+          if (headerNameIndex > 1 && headerNameIndex < 8) {
+            // Only search a subset of the static header table. Most entries have an empty value, so
+            // it's unnecessary to waste cycles looking at them. The entries we care about are in
+            // adjacent pairs, and we always know the first index of the pair.
+            if (STATIC_HEADER_TABLE[headerNameIndex - 1].value.equals(value)) {
+              headerIndex = headerNameIndex;
+            } else if (STATIC_HEADER_TABLE[headerNameIndex].value.equals(value)) {
+              headerIndex = headerNameIndex + 1;
+            }
+          }
+        }
+
+        if (headerIndex == -1) {
+          for (int j = nextHeaderIndex + 1, length = dynamicTable.length; j < length; j++) {
+            if (dynamicTable[j].name.equals(name)) {
+              if (dynamicTable[j].value.equals(value)) {
+                headerIndex = j - nextHeaderIndex + STATIC_HEADER_TABLE.length;
+                break;
+              } else if (headerNameIndex == -1) {
+                headerNameIndex = j - nextHeaderIndex + STATIC_HEADER_TABLE.length;
+              }
+            }
+          }
+        }
+
+        if (headerIndex != -1) {
+          // Indexed Header Field.
+          writeInt(headerIndex, PREFIX_7_BITS, 0x80);
+        } else if (isSensitive(name, value)) {
+          // Literal Header Field Never Indexed.
+          if (headerNameIndex == -1) {
+            out.writeByte(0x10);
+            writeByteString(name);
+          } else {
+            writeInt(headerNameIndex, PREFIX_4_BITS, 0x10);
+          }
+          writeByteString(value);
+        } else if (headerNameIndex == -1) {
+          // Literal Header Field with Incremental Indexing - New Name.
+          out.writeByte(0x40);
           writeByteString(name);
-          writeByteString(headerBlock.get(i).value);
+          writeByteString(value);
+          insertIntoDynamicTable(new Header(name, value));
+        } else if (name.size() > 0 && name.getByte(0) == ':'
+            && !Header.TARGET_AUTHORITY.equals(name)) {
+          // Follow Chrome's lead: only index the :authority pseudo header, since the others vary
+          // per request. Literal Header Field without Indexing - Indexed Name.
+          writeInt(headerNameIndex, PREFIX_4_BITS, 0);
+          writeByteString(value);
+        } else {
+          // Literal Header Field with Incremental Indexing - Indexed Name.
+          writeInt(headerNameIndex, PREFIX_6_BITS, 0x40);
+          writeByteString(value);
+          insertIntoDynamicTable(new Header(name, value));
         }
       }
     }
 
+    /** Returns true if {@code value} is a credential that must never be indexed. */
+    private static boolean isSensitive(ByteString name, ByteString value) {
+      return name.equals(AUTHORIZATION)
+          || name.equals(PROXY_AUTHORIZATION)
+          || (name.equals(COOKIE) && value.size() < SENSITIVE_COOKIE_MAX_SIZE);
+    }
+
     // http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-12#section-4.1.1
     void writeInt(int value, int prefixMask, int bits) throws IOException {
       // Write the raw value for a single byte value.
@@ -413,9 +583,46 @@ final class Hpack {
       out.writeByte(value);
     }
 
+    /** Writes {@code data} Huffman encoded if that is shorter, and as raw bytes otherwise. */
     void writeByteString(ByteString data) throws IOException {
-      writeInt(data.size(), PREFIX_7_BITS, 0);
-      out.write(data);
+      int huffmanLength = Huffman.get().encodedLength(data);
+      if (huffmanLength < data.size()) {
+        writeInt(huffmanLength, PREFIX_7_BITS, 0x80);
+        Huffman.get().encode(data, out);
+      } else {
+        writeInt(data.size(), PREFIX_7_BITS, 0);
+        out.write(data);
+      }
+    }
+
+    /**
+     * Called when the peer's {@link Settings#HEADER_TABLE_SIZE} is applied. The table shrinks right
+     * away; the decoder learns of the new size at the start of the next header block.
+     */
+    void setHeaderTableSizeSetting(int headerTableSizeSetting) {
+      this.headerTableSizeSetting = headerTableSizeSetting;
+      int effectiveHeaderTableSize = Math.min(headerTableSizeSetting,
+          SETTINGS_HEADER_TABLE_SIZE_LIMIT);
+
+      if (maxDynamicTableByteCount == effectiveHeaderTableSize) return; // No change.
+
+      if (effectiveHeaderTableSize < maxDynamicTableByteCount) {
+        smallestHeaderTableSizeSetting = Math.min(smallestHeaderTableSizeSetting,
+            effectiveHeaderTableSize);
+      }
+      emitDynamicTableSizeUpdate = true;
+      maxDynamicTableByteCount = effectiveHeaderTableSize;
+      adjustDynamicTableByteCount();
+    }
+
+    private void adjustDynamicTableByteCount() {
+      if (maxDynamicTableByteCount < dynamicTableByteCount) {
+        if (maxDynamicTableByteCount == 0) {
+          clearDynamicTable();
+        } else {
+          evictToRecoverBytes(dynamicTableByteCount - maxDynamicTableByteCount);
+        }
+      }
     }
   }
 
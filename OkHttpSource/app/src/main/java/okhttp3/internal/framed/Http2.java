@@ -382,12 +382,14 @@ public final class Http2 implements Variant {
     @Override public synchronized void ackSettings(Settings peerSettings) throws IOException {
       if (closed) throw new IOException("closed");
       this.maxFrameSize = peerSettings.getMaxFrameSize(maxFrameSize);
+      if (peerSettings.getHeaderTableSize() != -1) {
+        hpackWriter.setHeaderTableSizeSetting(peerSettings.getHeaderTableSize());
+      }
       int length = 0;
       byte type = TYPE_SETTINGS;
       byte flags = FLAG_ACK;
       int streamId = 0;
       frameHeader(streamId, length, type, flags);
-      sink.flush();
     }
 
     @Override public synchronized void connectionPreface() throws IOException {
@@ -401,11 +403,11 @@ public final class Http2 implements Variant {
     }
 
     @Override public synchronized void synStream(boolean outFinished, boolean inFinished,
-        int streamId, int associatedStreamId, List<Header> headerBlock)
+        int streamId, int associatedStreamId, int weight, List<Header> headerBlock)
         throws IOException {
       if (inFinished) throw new UnsupportedOperationException();
       if (closed) throw new IOException("closed");
-      headers(outFinished, streamId, headerBlock);
+      headers(outFinished, streamId, weight, headerBlock);
     }
 
     @Override public synchronized void synReply(boolean outFinished, int streamId,
@@ -437,15 +439,31 @@ public final class Http2 implements Variant {
     }
 
     void headers(boolean outFinished, int streamId, List<Header> headerBlock) throws IOException {
+      headers(outFinished, streamId, FramedStream.DEFAULT_WEIGHT, headerBlock);
+    }
+
+    /**
+     * Writes a HEADERS frame and its continuations. Unless {@code weight} is the default, the first
+     * frame also carries a priority that makes the stream a dependency of the root.
+     */
+    void headers(boolean outFinished, int streamId, int weight, List<Header> headerBlock)
+        throws IOException {
       if (closed) throw new IOException("closed");
       hpackWriter.writeHeaders(headerBlock);
 
+      boolean prioritized = weight != FramedStream.DEFAULT_WEIGHT;
+      int priorityLength = prioritized ? 5 : 0;
       long byteCount = hpackBuffer.size();
-      int length = (int) Math.min(maxFrameSize, byteCount);
+      int length = (int) Math.min(maxFrameSize - priorityLength, byteCount);
       byte type = TYPE_HEADERS;
       byte flags = byteCount == length ? FLAG_END_HEADERS : 0;
       if (outFinished) flags |= FLAG_END_STREAM;
-      frameHeader(streamId, length, type, flags);
+      if (prioritized) flags |= FLAG_PRIORITY;
+      frameHeader(streamId, length + priorityLength, type, flags);
+      if (prioritized) {
+        sink.writeInt(0); // Not exclusive, depends on stream 0.
+        sink.writeByte((weight - 1) & 0xff);
+      }
       sink.write(hpackBuffer, length);
 
       if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
@@ -460,6 +478,17 @@ public final class Http2 implements Variant {
       }
     }
 
+    @Override public synchronized void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) throws IOException {
+      if (closed) throw new IOException("closed");
+      if (weight < 1 || weight > 256) {
+        throw illegalArgument("weight < 1 || weight > 256: %s", weight);
+      }
+      frameHeader(streamId, 5, TYPE_PRIORITY, FLAG_NONE);
+      sink.writeInt((exclusive ? 0x80000000 : 0) | (streamDependency & 0x7fffffff));
+      sink.writeByte((weight - 1) & 0xff);
+    }
+
     @Override public synchronized void rstStream(int streamId, ErrorCode errorCode)
         throws IOException {
       if (closed) throw new IOException("closed");
@@ -470,7 +499,6 @@ public final class Http2 implements Variant {
       byte flags = FLAG_NONE;
       frameHeader(streamId, length, type, flags);
       sink.writeInt(errorCode.httpCode);
-      sink.flush();
     }
 
     @Override public int maxDataLength() {
@@ -511,7 +539,6 @@ public final class Http2 implements Variant {
         sink.writeShort(id);
         sink.writeInt(settings.get(i));
       }
-      sink.flush();
     }
 
     @Override public synchronized void ping(boolean ack, int payload1, int payload2)
@@ -524,7 +551,6 @@ public final class Http2 implements Variant {
       frameHeader(streamId, length, type, flags);
       sink.writeInt(payload1);
       sink.writeInt(payload2);
-      sink.flush();
     }
 
     @Override public synchronized void goAway(int lastGoodStreamId, ErrorCode errorCode,
@@ -556,7 +582,6 @@ public final class Http2 implements Variant {
       byte flags = FLAG_NONE;
       frameHeader(streamId, length, type, flags);
       sink.writeInt((int) windowSizeIncrement);
-      sink.flush();
     }
 
     @Override public synchronized void close() throws IOException {
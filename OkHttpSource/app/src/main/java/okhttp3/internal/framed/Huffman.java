@@ -15,9 +15,12 @@
  */
 package okhttp3.internal.framed;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Arrays;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
 
 /**
  * This class was originally composed from the following classes in <a
@@ -81,18 +84,30 @@ class Huffman {
     return INSTANCE;
   }
 
-  private final Node root = new Node();
+  private static final int EOS = 256;
+  private static final int EOS_CODE = 0x3fffffff;
+  private static final int EOS_CODE_LENGTH = 30;
+  private static final int NONE = Integer.MIN_VALUE;
+  private static final int DECODE_EMIT = 1 << 8;
+  private static final int DECODE_FAIL = 1 << 9;
+
+  /** 256 states of 16 entries each. See {@link #buildDecodeTable}. */
+  private static final int[] DECODE_TABLE = buildDecodeTable();
 
   private Huffman() {
-    buildTree();
   }
 
-  void encode(byte[] data, OutputStream out) throws IOException {
+  /**
+   * Writes the Huffman code of {@code data} to {@code sink}, padding the last byte with the most
+   * significant bits of EOS. Bytes are written as soon as they fill so that no intermediate array
+   * is needed. 直接写入sink，不分配中间数组
+   */
+  void encode(ByteString data, BufferedSink sink) throws IOException {
     long current = 0;
     int n = 0;
 
-    for (int i = 0; i < data.length; i++) {
-      int b = data[i] & 0xFF;
+    for (int i = 0, size = data.size(); i < size; i++) {
+      int b = data.getByte(i) & 0xFF;
       int code = CODES[b];
       int nbits = CODE_LENGTHS[b];
 
@@ -102,125 +117,97 @@ class Huffman {
 
       while (n >= 8) {
         n -= 8;
-        out.write(((int) (current >> n)));
+        sink.writeByte(((int) (current >> n)));
       }
     }
 
     if (n > 0) {
       current <<= (8 - n);
       current |= (0xFF >>> n);
-      out.write((int) current);
+      sink.writeByte((int) current);
     }
   }
 
-  int encodedLength(byte[] bytes) {
+  /** Returns the number of bytes {@link #encode} would write for {@code bytes}. */
+  int encodedLength(ByteString bytes) {
     long len = 0;
 
-    for (int i = 0; i < bytes.length; i++) {
-      int b = bytes[i] & 0xFF;
+    for (int i = 0, size = bytes.size(); i < size; i++) {
+      int b = bytes.getByte(i) & 0xFF;
       len += CODE_LENGTHS[b];
     }
 
     return (int) ((len + 7) >> 3);
   }
 
-  byte[] decode(byte[] buf) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Node node = root;
-    int current = 0;
-    int nbits = 0;
-    for (int i = 0; i < buf.length; i++) {
-      int b = buf[i] & 0xFF;
-      current = (current << 8) | b;
-      nbits += 8;
-      while (nbits >= 8) {
-        int c = (current >>> (nbits - 8)) & 0xFF;
-        node = node.children[c];
-        if (node.children == null) {
-          // terminal node
-          baos.write(node.symbol);
-          nbits -= node.terminalBits;
-          node = root;
-        } else {
-          // non-terminal node
-          nbits -= 8;
-        }
-      }
-    }
-
-    while (nbits > 0) {
-      int c = (current << (8 - nbits)) & 0xFF;
-      node = node.children[c];
-      if (node.children != null || node.terminalBits > nbits) {
-        break;
-      }
-      baos.write(node.symbol);
-      nbits -= node.terminalBits;
-      node = root;
+  /**
+   * Decodes {@code byteCount} Huffman encoded bytes from {@code source} into {@code sink}. This
+   * consumes a nibble per table lookup and allocates nothing, so callers can decode into a reused
+   * buffer. Padding is not validated. 查表解码，每次处理4个比特
+   */
+  void decode(BufferedSource source, long byteCount, Buffer sink) throws IOException {
+    int[] decodeTable = DECODE_TABLE;
+    int state = 0;
+    for (long i = 0; i < byteCount; i++) {
+      int b = source.readByte() & 0xFF;
+
+      int entry = decodeTable[(state << 4) | (b >>> 4)];
+      if ((entry & DECODE_FAIL) != 0) throw new IOException("Huffman string contains EOS");
+      if ((entry & DECODE_EMIT) != 0) sink.writeByte(entry & 0xFF);
+      state = entry >>> 16;
+
+      entry = decodeTable[(state << 4) | (b & 0x0F)];
+      if ((entry & DECODE_FAIL) != 0) throw new IOException("Huffman string contains EOS");
+      if ((entry & DECODE_EMIT) != 0) sink.writeByte(entry & 0xFF);
+      state = entry >>> 16;
     }
-
-    return baos.toByteArray();
   }
 
-  private void buildTree() {
-    for (int i = 0; i < CODE_LENGTHS.length; i++) {
-      addCode(i, CODES[i], CODE_LENGTHS[i]);
+  /**
+   * Builds the decoder's state table. Each state is an internal node of the code tree, with the
+   * root as state 0. Entry {@code state * 16 + nibble} holds the state reached by reading those 4
+   * bits in its upper 16 bits, and whether a symbol was completed along the way in its lower 16
+   * bits. As no code is shorter than 5 bits, a nibble completes at most one symbol.
+   */
+  private static int[] buildDecodeTable() {
+    // Children of each internal node: a node index, ~symbol for a leaf, or NONE.
+    int[][] children = new int[257][2];
+    for (int[] pair : children) {
+      Arrays.fill(pair, NONE);
     }
-  }
-
-  private void addCode(int sym, int code, byte len) {
-    Node terminal = new Node(sym, len);
-
-    Node current = root;
-    while (len > 8) {
-      len -= 8;
-      int i = ((code >>> len) & 0xFF);
-      if (current.children == null) {
-        throw new IllegalStateException("invalid dictionary: prefix not unique");
-      }
-      if (current.children[i] == null) {
-        current.children[i] = new Node();
+    int nodeCount = 1;
+    for (int symbol = 0; symbol <= EOS; symbol++) {
+      int code = symbol == EOS ? EOS_CODE : CODES[symbol];
+      int length = symbol == EOS ? EOS_CODE_LENGTH : CODE_LENGTHS[symbol];
+      int node = 0;
+      for (int bit = length - 1; bit > 0; bit--) {
+        int b = (code >>> bit) & 1;
+        if (children[node][b] == NONE) children[node][b] = nodeCount++;
+        node = children[node][b];
       }
-      current = current.children[i];
+      children[node][code & 1] = ~symbol;
     }
 
-    int shift = 8 - len;
-    int start = (code << shift) & 0xFF;
-    int end = 1 << shift;
-    for (int i = start; i < start + end; i++) {
-      current.children[i] = terminal;
-    }
-  }
-
-  private static final class Node {
-
-    // Null if terminal.
-    private final Node[] children;
-
-    // Terminal nodes have a symbol.
-    private final int symbol;
-
-    // Number of bits represented in the terminal node.
-    private final int terminalBits;
-
-    /** Construct an internal node. */
-    Node() {
-      this.children = new Node[256];
-      this.symbol = 0; // Not read.
-      this.terminalBits = 0; // Not read.
-    }
-
-    /**
-     * Construct a terminal node.
-     *
-     * @param symbol symbol the node represents
-     * @param bits length of Huffman code in bits
-     */
-    Node(int symbol, int bits) {
-      this.children = null;
-      this.symbol = symbol;
-      int b = bits & 0x07;
-      this.terminalBits = b == 0 ? 8 : b;
+    int[] result = new int[nodeCount * 16];
+    for (int state = 0; state < nodeCount; state++) {
+      for (int nibble = 0; nibble < 16; nibble++) {
+        int node = state;
+        int entry = 0;
+        for (int bit = 3; bit >= 0; bit--) {
+          int child = children[node][(nibble >>> bit) & 1];
+          if (child >= 0) {
+            node = child;
+          } else if (~child == EOS) {
+            entry = DECODE_FAIL;
+            break;
+          } else {
+            entry = DECODE_EMIT | ~child;
+            node = 0;
+          }
+        }
+        result[(state << 4) | nibble] = (node << 16) | entry;
+      }
     }
+    return result;
   }
 }
@@ -55,6 +55,14 @@ public final class Ping {
     return received - sent;
   }
 
+  /**
+   * Returns the round trip time for this ping in nanoseconds, or -1 if the response was canceled,
+   * or -2 if the response hasn't arrived. This doesn't wait.
+   */
+  public long roundTripTimeIfReceived() {
+    return latch.getCount() == 0 ? received - sent : -2;
+  }
+
   /**
    * Returns the round trip time for this ping in nanoseconds, or -1 if the response was canceled,
    * or -2 if the timeout elapsed before the round trip completed.
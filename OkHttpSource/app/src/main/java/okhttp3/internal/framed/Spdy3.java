@@ -311,6 +311,11 @@ public final class Spdy3 implements Variant {
       // Do nothing: no push promise for SPDY/3.
     }
 
+    @Override public void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) {
+      // Do nothing: SPDY/3 can only prioritize a stream in its SYN_STREAM.
+    }
+
     @Override public synchronized void connectionPreface() {
       // Do nothing: no connection preface for SPDY/3.
     }
@@ -321,7 +326,7 @@ public final class Spdy3 implements Variant {
     }
 
     @Override public synchronized void synStream(boolean outFinished, boolean inFinished,
-        int streamId, int associatedStreamId, List<Header> headerBlock)
+        int streamId, int associatedStreamId, int weight, List<Header> headerBlock)
         throws IOException {
       if (closed) throw new IOException("closed");
       writeNameValueBlockToBuffer(headerBlock);
@@ -329,12 +334,16 @@ public final class Spdy3 implements Variant {
       int type = TYPE_SYN_STREAM;
       int flags = (outFinished ? FLAG_FIN : 0) | (inFinished ? FLAG_UNIDIRECTIONAL : 0);
 
+      // 0 is the most important of SPDY/3's eight levels. Each halving of the HTTP/2 weight is one
+      // level less important, so the default weight of 16 is mid-range at 3.
+      int log2Weight = 31 - Integer.numberOfLeadingZeros(weight);
+      int priority = Math.max(0, Math.min(7, 7 - log2Weight));
       int unused = 0;
       sink.writeInt(0x80000000 | (VERSION & 0x7fff) << 16 | type & 0xffff);
       sink.writeInt((flags & 0xff) << 24 | length & 0xffffff);
       sink.writeInt(streamId & 0x7fffffff);
       sink.writeInt(associatedStreamId & 0x7fffffff);
-      sink.writeShort((unused & 0x7) << 13 | (unused & 0x1f) << 8 | (unused & 0xff));
+      sink.writeShort((priority & 0x7) << 13 | (unused & 0x1f) << 8 | (unused & 0xff));
       sink.writeAll(headerBlockBuffer);
       sink.flush();
     }
@@ -379,7 +388,6 @@ public final class Spdy3 implements Variant {
       sink.writeInt((flags & 0xff) << 24 | length & 0xffffff);
       sink.writeInt(streamId & 0x7fffffff);
       sink.writeInt(errorCode.spdyRstCode);
-      sink.flush();
     }
 
     @Override public int maxDataLength() {
@@ -433,7 +441,6 @@ public final class Spdy3 implements Variant {
         sink.writeInt((settingsFlags & 0xff) << 24 | (i & 0xffffff));
         sink.writeInt(settings.get(i));
       }
-      sink.flush();
     }
 
     @Override public synchronized void ping(boolean reply, int payload1, int payload2)
@@ -447,7 +454,6 @@ public final class Spdy3 implements Variant {
       sink.writeInt(0x80000000 | (VERSION & 0x7fff) << 16 | type & 0xffff);
       sink.writeInt((flags & 0xff) << 24 | length & 0xffffff);
       sink.writeInt(payload1);
-      sink.flush();
     }
 
     @Override public synchronized void goAway(int lastGoodStreamId, ErrorCode errorCode,
@@ -480,7 +486,6 @@ public final class Spdy3 implements Variant {
       sink.writeInt((flags & 0xff) << 24 | length & 0xffffff);
       sink.writeInt(streamId);
       sink.writeInt((int) increment);
-      sink.flush();
     }
 
     @Override public synchronized void close() throws IOException {
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Route;
+import okhttp3.internal.Internal;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
+import okhttp3.internal.io.RealConnection;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Races connections to several routes of the same proxy, as recommended by RFC 8305 ("Happy
+ * Eyeballs"). Attempts are started in route order, each {@link #CONNECTION_ATTEMPT_DELAY_MILLIS}
+ * after the previous one or immediately when the previous one fails. The first connection to
+ * complete wins. Losers still waiting on a TCP connect are canceled; losers that are already
+ * connected are allowed to finish and are given to the pool as idle connections rather than being
+ * thrown away, unless the address is at its connection limit. No more attempts run at once than
+ * the connects the caller reserved with the pool.
+ *
+ * <p>This way a black-holed first address costs one attempt delay instead of a full connect
+ * timeout. 多个IP地址并发建立连接，谁先连上用谁
+ */
+final class ConnectionRace {
+  /** The delay between starting attempts recommended by RFC 8305. */
+  static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250L;
+
+  private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp ConnectionRace", true));
+
+  private static final Executor virtualExecutor =
+      Util.virtualThreadExecutor("OkHttp ConnectionRace");
+
+  private final ConnectionPool connectionPool;
+  private final List<Route> routes;
+  private final int maxRunning;
+  private final boolean virtualThreads;
+  private final int pingIntervalMillis;
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final int writeTimeout;
+  private final boolean connectionRetryEnabled;
+
+  // State guarded by this.
+  private final List<RealConnection> attempts = new ArrayList<>();
+  private final Map<Route, IOException> failures = new LinkedHashMap<>();
+  private RouteException routeException;
+  /** An attempt's unexpected failure, like a RuntimeException from a socket factory, or null. */
+  private Throwable unexpectedFailure;
+  private int running;
+  private RealConnection winner;
+  private boolean canceled;
+
+  /**
+   * @param maxRunning how many attempts may connect at once. The caller reserves this many
+   *     connects to the address with the pool.
+   */
+  ConnectionRace(ConnectionPool connectionPool, List<Route> routes, int maxRunning,
+      boolean virtualThreads, int pingIntervalMillis, int connectTimeout, int readTimeout,
+      int writeTimeout, boolean connectionRetryEnabled) {
+    this.connectionPool = connectionPool;
+    this.routes = routes;
+    this.maxRunning = maxRunning;
+    this.virtualThreads = virtualThreads;
+    this.pingIntervalMillis = pingIntervalMillis;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.writeTimeout = writeTimeout;
+    this.connectionRetryEnabled = connectionRetryEnabled;
+  }
+
+  /**
+   * Runs the race and returns the winning connection. The returned connection is connected but not
+   * in the pool. Throws a {@link RouteException} carrying every attempt's failure if all routes
+   * fail; {@link #failures} returns the routes that failed either way.
+   */
+  synchronized RealConnection connect() throws IOException, RouteException {
+    int nextRoute = 0;
+    long nextStartNanos = System.nanoTime();
+    try {
+      while (true) {
+        if (canceled) throw new IOException("Canceled");
+        if (winner != null) return winner;
+        if (unexpectedFailure instanceof RuntimeException) {
+          throw (RuntimeException) unexpectedFailure;
+        }
+        if (unexpectedFailure instanceof Error) throw (Error) unexpectedFailure;
+
+        long now = System.nanoTime();
+        if (nextRoute < routes.size() && running < maxRunning
+            && (running == 0 || now >= nextStartNanos)) {
+          start(routes.get(nextRoute++));
+          nextStartNanos = now + TimeUnit.MILLISECONDS.toNanos(CONNECTION_ATTEMPT_DELAY_MILLIS);
+          continue;
+        }
+
+        if (running == 0) throw routeException; // Every route failed.
+
+        // Wait for an attempt to finish, or until it's time to start the next one.
+        long waitNanos = nextRoute < routes.size() && running < maxRunning
+            ? nextStartNanos - now
+            : 0L;
+        long waitMillis = waitNanos / 1000000L;
+        wait(waitMillis, (int) (waitNanos - waitMillis * 1000000L));
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } finally {
+      // Stop the losers. Those already connected finish and are pooled by their attempts.
+      if (winner == null) canceled = true;
+      for (RealConnection attempt : attempts) {
+        if (attempt != winner && (canceled || !attempt.isSocketConnected())) attempt.cancel();
+      }
+    }
+  }
+
+  /** Stops this race. A blocked call to {@link #connect} throws. */
+  synchronized void cancel() {
+    canceled = true;
+    notifyAll();
+  }
+
+  /** Returns the routes whose attempts failed and the last exception of each. */
+  synchronized Map<Route, IOException> failures() {
+    return new LinkedHashMap<>(failures);
+  }
+
+  private void start(final Route route) {
+    final RealConnection connection =
+        new RealConnection(route, virtualThreads, pingIntervalMillis);
+    attempts.add(connection);
+    running++;
+
+    Runnable attempt = new NamedRunnable("OkHttp connect %s", route.socketAddress()) {
+      @Override protected void execute() {
+        attempt(connection);
+      }
+    };
+    if (virtualThreads) {
+      virtualExecutor.execute(attempt);
+    } else {
+      executor.execute(attempt);
+    }
+  }
+
+  private void attempt(RealConnection connection) {
+    boolean connected = false;
+    try {
+      long connectStartNanos = System.nanoTime();
+      connection.connect(connectTimeout, readTimeout, writeTimeout,
+          connection.route().address().connectionSpecs(), connectionRetryEnabled);
+      // Losers that connect are timed too: they are the only measurements of the other routes.
+      Internal.instance.routeDatabase(connectionPool).connected(
+          connection.route(), System.nanoTime() - connectStartNanos);
+      connected = true;
+    } catch (RouteException e) {
+      synchronized (this) {
+        // A loser canceled because the race is over says nothing about its route.
+        if (!canceled && winner == null) {
+          failures.put(connection.route(), e.getLastConnectException());
+          if (routeException == null) {
+            routeException = e;
+          } else {
+            routeException.addConnectException(e.getLastConnectException());
+          }
+        }
+      }
+    } catch (RuntimeException | Error e) {
+      connection.cancel();
+      synchronized (this) {
+        // Fail the race with it, as a call without a race would have failed.
+        if (!canceled && winner == null && unexpectedFailure == null) unexpectedFailure = e;
+      }
+      throw e;
+    } finally {
+      if (!connected) {
+        // Always count the attempt out, or connect() would wait for it forever.
+        synchronized (this) {
+          running--;
+          notifyAll();
+        }
+      }
+    }
+    if (!connected) return;
+
+    synchronized (this) {
+      running--;
+      if (winner == null && !canceled) {
+        winner = connection;
+        notifyAll();
+        return;
+      }
+    }
+
+    // We lost, but the connection is good. Keep it for a later call if the pool has room.
+    boolean close = true;
+    synchronized (connectionPool) {
+      if (!connection.socket().isClosed()
+          && !Internal.instance.connectionLimitReached(connectionPool, connection.route().address())) {
+        Internal.instance.put(connectionPool, connection);
+        connection.idleAtNanos = System.nanoTime();
+        close = Internal.instance.connectionBecameIdle(connectionPool, connection);
+      }
+    }
+    if (close) closeQuietly(connection.socket());
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import okhttp3.Headers;
+import okhttp3.Protocol;
+import okhttp3.internal.Internal;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Reads HTTP/1 status lines and header blocks by scanning bytes in the source's buffer. Unlike
+ * reading each line into a String and splitting it, this decodes each name and value straight from
+ * the buffer, already trimmed. Well-known names and values are matched byte by byte against shared
+ * constants, so a typical header costs at most one String.
+ */
+public final class HeadersReader {
+  private static final String[] NAMES = {
+      "Accept-Ranges",
+      "Access-Control-Allow-Credentials",
+      "Access-Control-Allow-Origin",
+      "Age",
+      "Alt-Svc",
+      "Cache-Control",
+      "Connection",
+      "Content-Disposition",
+      "Content-Encoding",
+      "Content-Language",
+      "Content-Length",
+      "Content-Range",
+      "Content-Type",
+      "Date",
+      "ETag",
+      "Expires",
+      "Keep-Alive",
+      "Last-Modified",
+      "Link",
+      "Location",
+      "Pragma",
+      "Retry-After",
+      "Server",
+      "Set-Cookie",
+      "Strict-Transport-Security",
+      "Transfer-Encoding",
+      "Vary",
+      "Via",
+      "WWW-Authenticate",
+      "X-Content-Type-Options",
+      "X-Frame-Options",
+      "X-XSS-Protection",
+  };
+
+  private static final String[] VALUES = {
+      "*",
+      "0",
+      "1; mode=block",
+      "Accept-Encoding",
+      "DENY",
+      "Origin",
+      "SAMEORIGIN",
+      "application/json",
+      "application/json; charset=UTF-8",
+      "application/json; charset=utf-8",
+      "application/json;charset=UTF-8",
+      "application/json;charset=utf-8",
+      "bytes",
+      "chunked",
+      "close",
+      "gzip",
+      "identity",
+      "keep-alive",
+      "max-age=0",
+      "no-cache",
+      "no-store",
+      "none",
+      "nosniff",
+      "private",
+      "text/html",
+      "text/html; charset=UTF-8",
+      "text/html; charset=utf-8",
+      "text/plain",
+      "text/plain; charset=utf-8",
+      "true",
+  };
+
+  private static final String[] MESSAGES = {
+      "Accepted",
+      "Bad Gateway",
+      "Bad Request",
+      "Created",
+      "Forbidden",
+      "Found",
+      "Gateway Timeout",
+      "Internal Server Error",
+      "Moved Permanently",
+      "No Content",
+      "Not Found",
+      "Not Modified",
+      "OK",
+      "Partial Content",
+      "Permanent Redirect",
+      "See Other",
+      "Service Unavailable",
+      "Temporary Redirect",
+      "Too Many Requests",
+      "Unauthorized",
+  };
+
+  /** Header names as sent, both capitalized and in lowercase, indexed by length. */
+  private static final String[][] NAMES_BY_LENGTH = byLength(NAMES, true);
+  private static final String[][] VALUES_BY_LENGTH = byLength(VALUES, false);
+  private static final String[][] MESSAGES_BY_LENGTH = byLength(MESSAGES, false);
+
+  private HeadersReader() {
+  }
+
+  /** Reads a status line like "HTTP/1.1 200 OK". */
+  public static StatusLine readStatusLine(BufferedSource source) throws IOException {
+    long newline = lineEnd(source);
+    Buffer buffer = source.buffer();
+    long end = contentEnd(buffer, newline);
+
+    // Fast path for the common shape; anything else is decoded and parsed as before.
+    if (end < 12
+        || !startsWith(buffer, "HTTP/1.")
+        || (buffer.getByte(7) != '0' && buffer.getByte(7) != '1')
+        || buffer.getByte(8) != ' '
+        || !isDigit(buffer.getByte(9))
+        || !isDigit(buffer.getByte(10))
+        || !isDigit(buffer.getByte(11))
+        || (end > 12 && buffer.getByte(12) != ' ')) {
+      String statusLine = buffer.readUtf8(end);
+      buffer.skip(newline + 1 - end);
+      return StatusLine.parse(statusLine);
+    }
+
+    Protocol protocol = buffer.getByte(7) == '0' ? Protocol.HTTP_1_0 : Protocol.HTTP_1_1;
+    int code = (buffer.getByte(9) - '0') * 100
+        + (buffer.getByte(10) - '0') * 10
+        + (buffer.getByte(11) - '0');
+    String message = "";
+    if (end > 12) {
+      buffer.skip(13);
+      message = readString(buffer, end - 13, MESSAGES_BY_LENGTH);
+      buffer.skip(newline + 1 - end);
+    } else {
+      buffer.skip(newline + 1);
+    }
+    return new StatusLine(protocol, code, message);
+  }
+
+  /** Reads header lines until the first blank line. */
+  public static Headers readHeaders(BufferedSource source) throws IOException {
+    Headers.Builder headers = new Headers.Builder();
+    Buffer buffer = source.buffer();
+    while (true) {
+      long newline = lineEnd(source);
+      long end = contentEnd(buffer, newline);
+      if (end == 0) {
+        buffer.skip(newline + 1);
+        return headers.build();
+      }
+
+      // Split like Headers.Builder.addLenient(String): the first colon after the first character
+      // separates the name, a leading colon is dropped, and lines without one have no name.
+      long colon = buffer.indexOf((byte) ':', 1);
+      long nameEnd;
+      long valueStart;
+      if (colon != -1 && colon < end) {
+        nameEnd = colon;
+        valueStart = colon + 1;
+      } else {
+        nameEnd = 0;
+        valueStart = buffer.getByte(0) == ':' ? 1 : 0;
+      }
+
+      String name = nameEnd == 0 ? "" : readString(buffer, nameEnd, NAMES_BY_LENGTH);
+      buffer.skip(valueStart - nameEnd);
+      long consumed = valueStart;
+
+      // Trim whitespace and control characters from both ends, like String.trim().
+      while (consumed < end && (buffer.getByte(0) & 0xff) <= ' ') {
+        buffer.skip(1);
+        consumed++;
+      }
+      long valueEnd = end;
+      while (valueEnd > consumed && (buffer.getByte(valueEnd - consumed - 1) & 0xff) <= ' ') {
+        valueEnd--;
+      }
+
+      String value = readString(buffer, valueEnd - consumed, VALUES_BY_LENGTH);
+      buffer.skip(newline + 1 - valueEnd);
+      Internal.instance.addLenient(headers, name, value);
+    }
+  }
+
+  /** Returns the offset of the next '\n' in {@code source}, buffering the line if necessary. */
+  private static long lineEnd(BufferedSource source) throws IOException {
+    long newline = source.indexOf((byte) '\n');
+    if (newline == -1L) {
+      Buffer buffer = source.buffer();
+      Buffer data = new Buffer();
+      buffer.copyTo(data, 0, Math.min(32, buffer.size()));
+      throw new EOFException("\\n not found: size=" + buffer.size()
+          + " content=" + data.readByteString().hex() + "…");
+    }
+    return newline;
+  }
+
+  /** Returns the length of the line ending at {@code newline}, without its CRLF or LF. */
+  private static long contentEnd(Buffer buffer, long newline) {
+    return newline > 0 && buffer.getByte(newline - 1) == '\r' ? newline - 1 : newline;
+  }
+
+  /**
+   * Consumes {@code byteCount} bytes and returns them as a string, sharing the matching constant in
+   * {@code candidatesByLength} if there is one.
+   */
+  private static String readString(Buffer buffer, long byteCount, String[][] candidatesByLength)
+      throws EOFException {
+    if (byteCount < candidatesByLength.length) {
+      for (String candidate : candidatesByLength[(int) byteCount]) {
+        if (startsWith(buffer, candidate)) {
+          buffer.skip(byteCount);
+          return candidate;
+        }
+      }
+    }
+    return buffer.readUtf8(byteCount);
+  }
+
+  /** Returns true if the buffer starts with the ASCII string {@code prefix}. */
+  private static boolean startsWith(Buffer buffer, String prefix) {
+    int length = prefix.length();
+    if (buffer.size() < length) return false;
+    for (int i = 0; i < length; i++) {
+      if (buffer.getByte(i) != prefix.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static String[][] byLength(String[] strings, boolean withLowercase) {
+    List<String> all = new ArrayList<>(Arrays.asList(strings));
+    if (withLowercase) {
+      for (String s : strings) all.add(s.toLowerCase(Locale.US));
+    }
+    int maxLength = 0;
+    for (String s : all) maxLength = Math.max(maxLength, s.length());
+
+    List<List<String>> grouped = new ArrayList<>();
+    for (int i = 0; i <= maxLength; i++) grouped.add(new ArrayList<String>());
+    for (String s : all) grouped.get(s.length()).add(s);
+
+    String[][] result = new String[maxLength + 1][];
+    for (int i = 0; i <= maxLength; i++) {
+      result[i] = grouped.get(i).toArray(new String[grouped.get(i).size()]);
+    }
+    return result;
+  }
+}
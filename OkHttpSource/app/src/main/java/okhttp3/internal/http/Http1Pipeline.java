@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Orders the exchanges of an HTTP/1.1 connection that carries pipelined requests. Requests are
+ * written back to back without waiting for responses, and the server answers them in the order
+ * they were received. Each stream waits here until the responses ahead of its own have been read.
+ *
+ * <p>If any exchange fails, the connection's framing is lost and the pipeline fails: streams still
+ * waiting for their turn are abandoned so their calls can replay their requests elsewhere.
+ */
+public final class Http1Pipeline {
+  /** Streams whose requests have been written but whose responses haven't been read, in order. */
+  private final Deque<Http1xStream> streams = new ArrayDeque<>();
+  private IOException failure;
+
+  /**
+   * Enqueues {@code stream}, whose request is about to be written. Callers must hold the
+   * connection's sink so that requests are written in the order they are enqueued. Returns true if
+   * the request will be pipelined behind another exchange.
+   */
+  synchronized boolean enqueue(Http1xStream stream) throws IOException {
+    if (failure != null) throw abandoned();
+    boolean pipelined = !streams.isEmpty();
+    streams.addLast(stream);
+    return pipelined;
+  }
+
+  /**
+   * Waits until the responses ahead of {@code stream}'s have been read so that it may read its own.
+   * If that takes longer than {@code timeoutMillis} this fails the pipeline: the response can't be
+   * skipped once its turn comes.
+   */
+  synchronized void awaitTurn(Http1xStream stream, int timeoutMillis) throws IOException {
+    long timeoutNanos = timeoutMillis != 0 ? MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+    long deadlineNanos = System.nanoTime() + timeoutNanos;
+    while (true) {
+      if (failure != null) throw abandoned();
+      if (streams.peekFirst() == stream) return;
+
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        SocketTimeoutException timeout =
+            new SocketTimeoutException("timeout waiting for pipelined responses");
+        fail(timeout);
+        throw timeout;
+      }
+      try {
+        long waitMillis = remainingNanos / 1000000L;
+        wait(waitMillis, (int) (remainingNanos - waitMillis * 1000000L));
+      } catch (InterruptedException e) {
+        InterruptedIOException interrupted = new InterruptedIOException();
+        fail(interrupted);
+        throw interrupted;
+      }
+    }
+  }
+
+  /**
+   * Dequeues {@code stream} after its response has been read, letting the next stream read its
+   * own. Returns true if the connection may carry further exchanges.
+   */
+  synchronized boolean streamFinished(Http1xStream stream, boolean reuseConnection) {
+    streams.remove(stream);
+    if (!reuseConnection && failure == null) {
+      failure = new IOException("connection closed");
+    }
+    notifyAll();
+    return failure == null;
+  }
+
+  /** Abandons the streams that haven't started reading their responses. */
+  synchronized void fail(IOException e) {
+    if (failure == null) failure = e;
+    notifyAll();
+  }
+
+  /** Returns true if no exchanges are in flight, so the connection's source may be read. */
+  public synchronized boolean isIdle() {
+    return streams.isEmpty();
+  }
+
+  private IOException abandoned() {
+    IOException exception = new IOException("pipelined exchange abandoned");
+    exception.initCause(failure);
+    return exception;
+  }
+}
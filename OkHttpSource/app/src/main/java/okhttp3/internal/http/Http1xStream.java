@@ -23,7 +23,6 @@ import okhttp3.Headers;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
-import okhttp3.internal.Internal;
 import okhttp3.internal.Util;
 import okhttp3.internal.io.RealConnection;
 import okio.Buffer;
@@ -58,6 +57,9 @@ import static okhttp3.internal.http.StatusLine.HTTP_CONTINUE;
  * <p>Exchanges that do not have a request body may skip creating and closing the request body.
  * Exchanges that do not have a response body can call {@link #newFixedLengthSource(long)
  * newFixedLengthSource(0)} and may skip reading and closing that source.
+ *
+ * <p>Streams on a connection with an {@link Http1Pipeline} may write their requests while earlier
+ * exchanges are still in flight. Each then waits for its turn before reading response headers.
  * 使用的是http 1
  */
 public final class Http1xStream implements HttpStream {
@@ -73,13 +75,32 @@ public final class Http1xStream implements HttpStream {
   private final StreamAllocation streamAllocation;
   private final BufferedSource source;
   private final BufferedSink sink;
+  /** The pipeline of this stream's connection, or null if the connection isn't pipelined. */
+  private final Http1Pipeline pipeline;
+  private final int readTimeout;
+  /** True if this stream's request was or would have been written behind another exchange. */
+  private boolean pipelined;
   private HttpEngine httpEngine;
   private int state = STATE_IDLE;
 
   public Http1xStream(StreamAllocation streamAllocation, BufferedSource source, BufferedSink sink) {
+    this(streamAllocation, source, sink, null, false, 0);
+  }
+
+  /**
+   * @param pipelined true if the connection was already carrying another exchange when this stream
+   *     was allocated to it.
+   * @param readTimeout how long to wait for earlier pipelined exchanges before reading this
+   *     stream's response, and then how long to wait for that response.
+   */
+  Http1xStream(StreamAllocation streamAllocation, BufferedSource source, BufferedSink sink,
+      Http1Pipeline pipeline, boolean pipelined, int readTimeout) {
     this.streamAllocation = streamAllocation;
     this.source = source;
     this.sink = sink;
+    this.pipeline = pipeline;
+    this.pipelined = pipelined;
+    this.readTimeout = readTimeout;
   }
 
   @Override public void setHttpEngine(HttpEngine httpEngine) {
@@ -157,8 +178,27 @@ public final class Http1xStream implements HttpStream {
     return state == STATE_CLOSED;
   }
 
+  /**
+   * Returns true if this stream's request shared its connection with another exchange. Such a
+   * request may be lost when that exchange fails, even though the server never saw it.
+   */
+  public boolean isPipelined() {
+    return pipelined;
+  }
+
   @Override public void finishRequest() throws IOException {
-    sink.flush();
+    if (pipeline == null) {
+      sink.flush();
+      return;
+    }
+    synchronized (sink) {
+      try {
+        sink.flush();
+      } catch (IOException e) {
+        pipeline.fail(e);
+        throw e;
+      }
+    }
   }
 
   /** Returns bytes of a request header for sending on an HTTP transport.
@@ -166,6 +206,24 @@ public final class Http1xStream implements HttpStream {
    * */
   public void writeRequest(Headers headers, String requestLine) throws IOException {
     if (state != STATE_IDLE) throw new IllegalStateException("state: " + state);
+    if (pipeline == null) {
+      writeRequestBytes(headers, requestLine);
+    } else {
+      // Pipelined requests share the sink. Write each whole, in the order responses will arrive.
+      synchronized (sink) {
+        if (pipeline.enqueue(this)) pipelined = true;
+        try {
+          writeRequestBytes(headers, requestLine);
+        } catch (IOException e) {
+          pipeline.fail(e);
+          throw e;
+        }
+      }
+    }
+    state = STATE_OPEN_REQUEST_BODY;
+  }
+
+  private void writeRequestBytes(Headers headers, String requestLine) throws IOException {
     sink.writeUtf8(requestLine).writeUtf8("\r\n");
     for (int i = 0, size = headers.size(); i < size; i++) {
       sink.writeUtf8(headers.name(i))
@@ -174,7 +232,6 @@ public final class Http1xStream implements HttpStream {
           .writeUtf8("\r\n");
     }
     sink.writeUtf8("\r\n");
-    state = STATE_OPEN_REQUEST_BODY;
   }
 
   /** Parses bytes of a response header from an HTTP transport. */
@@ -183,9 +240,15 @@ public final class Http1xStream implements HttpStream {
       throw new IllegalStateException("state: " + state);
     }
 
+    if (pipeline != null) {
+      pipeline.awaitTurn(this, readTimeout);
+      // The previous exchange detached the source's timeout when it finished.
+      source.timeout().timeout(readTimeout, MILLISECONDS);
+    }
+
     try {
       while (true) {
-        StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
+        StatusLine statusLine = HeadersReader.readStatusLine(source);
 
         Response.Builder responseBuilder = new Response.Builder()
             .protocol(statusLine.protocol)
@@ -202,18 +265,17 @@ public final class Http1xStream implements HttpStream {
       // Provide more context if the server ends the stream before sending a response.
       IOException exception = new IOException("unexpected end of stream on " + streamAllocation);
       exception.initCause(e);
+      if (pipeline != null) pipeline.fail(exception);
       throw exception;
+    } catch (IOException e) {
+      if (pipeline != null) pipeline.fail(e);
+      throw e;
     }
   }
 
   /** Reads headers or trailers. */
   public Headers readHeaders() throws IOException {
-    Headers.Builder headers = new Headers.Builder();
-    // parse the result headers until the first blank line
-    for (String line; (line = source.readUtf8LineStrict()).length() != 0; ) {
-      Internal.instance.addLenient(headers, line);
-    }
-    return headers.build();
+    return HeadersReader.readHeaders(source);
   }
 
   public Sink newChunkedSink() {
@@ -251,6 +313,10 @@ public final class Http1xStream implements HttpStream {
     if (streamAllocation == null) throw new IllegalStateException("streamAllocation == null");
     state = STATE_READING_RESPONSE_BODY;
     streamAllocation.noNewStreams();
+    if (pipeline != null) {
+      // This body runs to the end of the stream, so no pipelined response can follow it.
+      pipeline.fail(new ProtocolException("response body of unknown length"));
+    }
     return new UnknownLengthSource();
   }
 
@@ -360,6 +426,9 @@ public final class Http1xStream implements HttpStream {
       detachTimeout(timeout);
 
       state = STATE_CLOSED;
+      if (pipeline != null) {
+        reuseConnection = pipeline.streamFinished(Http1xStream.this, reuseConnection);
+      }
       if (streamAllocation != null) {
         streamAllocation.streamFinished(!reuseConnection, Http1xStream.this);
       }
@@ -148,7 +148,8 @@ public final class Http2xStream implements HttpStream {
         ? http2HeadersList(request)
         : spdy3HeadersList(request);
     boolean hasResponseBody = true;
-    stream = framedConnection.newStream(requestHeaders, permitsRequestBody, hasResponseBody);
+    stream = framedConnection.newStream(requestHeaders, permitsRequestBody, hasResponseBody,
+        request.priority().streamWeight());
     stream.readTimeout().timeout(httpEngine.client.getReadTimeout(), TimeUnit.MILLISECONDS);
     stream.writeTimeout().timeout(httpEngine.client.getWriteTimeout(), TimeUnit.MILLISECONDS);
   }
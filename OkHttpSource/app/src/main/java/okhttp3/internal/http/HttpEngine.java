@@ -39,6 +39,7 @@ import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 import okhttp3.Route;
+import okhttp3.TlsSessionCache;
 import okhttp3.internal.Internal;
 import okhttp3.internal.InternalCache;
 import okhttp3.internal.Version;
@@ -176,7 +177,8 @@ public final class HttpEngine {
     this.forWebSocket = forWebSocket;
     this.streamAllocation = streamAllocation != null
         ? streamAllocation
-        : new StreamAllocation(client.getConnectionPool(), createAddress(client, request));
+        : new StreamAllocation(client.getConnectionPool(), createAddress(client, request.url()),
+            client.getVirtualThreads(), client.getPingInterval());
     this.requestBodyOut = requestBodyOut;
     this.priorResponse = priorResponse;
   }
@@ -288,10 +290,13 @@ public final class HttpEngine {
    * @throws IOException
      */
   private HttpStream connect() throws RouteException, RequestException, IOException {
-    boolean doExtensiveHealthChecks = !networkRequest.method().equals("GET");
+    String method = networkRequest.method();
+    boolean doExtensiveHealthChecks = !method.equals("GET");
+    // Only idempotent requests without bodies may be pipelined. Web sockets take over the socket.
+    boolean pipelinable = !forWebSocket && (method.equals("GET") || method.equals("HEAD"));
     return streamAllocation.newStream(client.getConnectTimeout(),
         client.getReadTimeout(), client.getWriteTimeout(),
-        client.getRetryOnConnectionFailure(), doExtensiveHealthChecks);//开始建立连接
+        client.getRetryOnConnectionFailure(), doExtensiveHealthChecks, pipelinable);//开始建立连接
   }
 
   private static Response stripBody(Response response) {
@@ -983,19 +988,25 @@ public final class HttpEngine {
         && url.scheme().equals(followUp.scheme());
   }
 
-  private static Address createAddress(OkHttpClient client, Request request) {
+  /**
+   * Returns the address that {@code client} uses to connect to {@code url}. The client must have
+   * its defaults applied.
+   */
+  public static Address createAddress(OkHttpClient client, HttpUrl url) {
     SSLSocketFactory sslSocketFactory = null;
     HostnameVerifier hostnameVerifier = null;
     CertificatePinner certificatePinner = null;
-    if (request.isHttps()) {
+    TlsSessionCache tlsSessionCache = null;
+    if (url.isHttps()) {
       sslSocketFactory = client.getSslSocketFactory();
       hostnameVerifier = client.getHostnameVerifier();
       certificatePinner = client.getCertificatePinner();
+      tlsSessionCache = client.getTlsSessionCache();
     }
 
-    return new Address(request.url().host(), request.url().port(), client.getDns(),
+    return new Address(url.host(), url.port(), client.getDns(),
         client.getSocketFactory(), sslSocketFactory, hostnameVerifier, certificatePinner,
         client.getProxyAuthenticator(), client.getProxy(), client.getProtocols(),
-        client.getConnectionSpecs(), client.getProxySelector());
+        client.getConnectionSpecs(), client.getProxySelector(), tlsSessionCache);
   }
 }
@@ -23,7 +23,10 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import okhttp3.Address;
 import okhttp3.HttpUrl;
@@ -113,6 +116,28 @@ public final class RouteSelector {
     return route;
   }
 
+  /**
+   * Returns the next route to attempt followed by the remaining routes to the same proxy that
+   * haven't failed recently. Callers may race connections to these routes instead of trying them
+   * one at a time; the returned routes are consumed either way. 返回同一代理下的所有剩余线路，用于并发连接
+   */
+  public List<Route> nextRoutes() throws IOException {
+    List<Route> result = new ArrayList<>();
+    result.add(next());
+
+    while (hasNextInetSocketAddress()) {
+      lastInetSocketAddress = nextInetSocketAddress();
+      Route route = new Route(address, lastProxy, lastInetSocketAddress);
+      if (routeDatabase.shouldPostpone(route)) {
+        postponedRoutes.add(route);
+      } else {
+        result.add(route);
+      }
+    }
+
+    return result;
+  }
+
   /**
    * Clients should invoke this method when they encounter a connectivity failure on a connection
    * returned by this route selector.
@@ -142,6 +167,8 @@ public final class RouteSelector {
       if (selectedProxies != null) proxies.addAll(selectedProxies);
       // Finally try a direct connection. We only try it once!
       proxies.removeAll(Collections.singleton(Proxy.NO_PROXY));
+      // Prefer the proxies that have connected fastest and most reliably.
+      sortByScore(proxies);
       proxies.add(Proxy.NO_PROXY);
     }
     nextProxyIndex = 0;
@@ -198,16 +225,82 @@ public final class RouteSelector {
       // Try each address for best behavior in mixed IPv4/IPv6 environments.
        //如果缓存中的lastInetSocketAddress为空，就通过DNS（默认是Dns.SYSTEM，包装了jdk自带的lookup函数）查询，并保存结果，
        // 注意结果是数组，即一个域名有多个IP，这就是自动重连的来源
-      List<InetAddress> addresses = address.dns().lookup(socketHost);
+      List<InetAddress> addresses = interleaveFamilies(address.dns().lookup(socketHost));
       for (int i = 0, size = addresses.size(); i < size; i++) {
         InetAddress inetAddress = addresses.get(i);
         inetSocketAddresses.add(new InetSocketAddress(inetAddress, socketPort));
       }
+      // Prefer the addresses that have connected fastest and most reliably.
+      sortByScore(proxy, inetSocketAddresses);
     }
 
     nextInetSocketAddressIndex = 0;
   }
 
+  /**
+   * Stable sorts {@code proxies} by their {@linkplain RouteDatabase#score(Address, Proxy) route
+   * scores}. Proxies without observations keep their relative order.
+   */
+  private void sortByScore(List<Proxy> proxies) {
+    if (proxies.size() < 2) return;
+    final Map<Proxy, Long> scores = new HashMap<>();
+    for (Proxy proxy : proxies) {
+      scores.put(proxy, routeDatabase.score(address, proxy));
+    }
+    Collections.sort(proxies, new Comparator<Proxy>() {
+      @Override public int compare(Proxy a, Proxy b) {
+        return compareLongs(scores.get(a), scores.get(b));
+      }
+    });
+  }
+
+  /** Stable sorts {@code socketAddresses} by the scores of their routes through {@code proxy}. */
+  private void sortByScore(Proxy proxy, List<InetSocketAddress> socketAddresses) {
+    if (socketAddresses.size() < 2) return;
+    final Map<InetSocketAddress, Long> scores = new HashMap<>();
+    for (InetSocketAddress socketAddress : socketAddresses) {
+      scores.put(socketAddress, routeDatabase.score(new Route(address, proxy, socketAddress)));
+    }
+    Collections.sort(socketAddresses, new Comparator<InetSocketAddress>() {
+      @Override public int compare(InetSocketAddress a, InetSocketAddress b) {
+        return compareLongs(scores.get(a), scores.get(b));
+      }
+    });
+  }
+
+  private static int compareLongs(long a, long b) {
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+
+  /**
+   * Returns {@code addresses} reordered to alternate between address families, starting with the
+   * family of the first address. Otherwise every IPv6 address would be tried before the first IPv4
+   * address when IPv6 is broken. See RFC 8305 section 4. IPv6与IPv4地址交替排列
+   */
+  private static List<InetAddress> interleaveFamilies(List<InetAddress> addresses) {
+    if (addresses.size() < 2) return addresses;
+
+    Class<?> firstFamily = addresses.get(0).getClass();
+    List<InetAddress> first = new ArrayList<>();
+    List<InetAddress> second = new ArrayList<>();
+    for (int i = 0, size = addresses.size(); i < size; i++) {
+      InetAddress inetAddress = addresses.get(i);
+      if (inetAddress.getClass() == firstFamily) {
+        first.add(inetAddress);
+      } else {
+        second.add(inetAddress);
+      }
+    }
+    if (second.isEmpty()) return addresses;
+
+    List<InetAddress> result = new ArrayList<>(addresses.size());
+    for (int i = 0; i < first.size() || i < second.size(); i++) {
+      if (i < first.size()) result.add(first.get(i));
+      if (i < second.size()) result.add(second.get(i));
+    }
+    return result;
+  }
+
   /**
    * Obtain a "host" from an {@link InetSocketAddress}. This returns a string containing either an
    * actual host name or a numeric IP address.
@@ -18,10 +18,13 @@ package okhttp3.internal.http;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
 import java.security.cert.CertificateException;
+import java.util.List;
+import java.util.Map;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import okhttp3.Address;
@@ -30,6 +33,9 @@ import okhttp3.Route;
 import okhttp3.internal.Internal;
 import okhttp3.internal.RouteDatabase;
 import okhttp3.internal.Util;
+import okhttp3.internal.framed.ConnectionShutdownException;
+import okhttp3.internal.framed.ErrorCode;
+import okhttp3.internal.framed.StreamResetException;
 import okhttp3.internal.io.RealConnection;
 import okio.Sink;
 
@@ -76,9 +82,14 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
  * Socket管理 流配置
  */
 public final class StreamAllocation {
+  /** How many times a call is replayed after its peer refused its stream. */
+  private static final int MAX_REFUSED_STREAM_REPLAYS = 3;
+
   public final Address address;
   private Route route;
   private final ConnectionPool connectionPool;
+  private final boolean virtualThreads;
+  private final int pingIntervalMillis;
 
   // State guarded by connectionPool.
   private RouteSelector routeSelector;
@@ -86,10 +97,25 @@ public final class StreamAllocation {
   private boolean released;
   private boolean canceled;
   private HttpStream stream;
+  private ConnectionRace connectionRace;
+  private boolean pipelinable;
+  private int refusedStreamCount;
 
   public StreamAllocation(ConnectionPool connectionPool, Address address) {
+    this(connectionPool, address, false, 0);
+  }
+
+  /**
+   * @param virtualThreads true if new connections should run their background work on virtual
+   *     threads when the runtime supports them.
+   * @param pingIntervalMillis how often new multiplexed connections are pinged while idle, or 0.
+   */
+  public StreamAllocation(ConnectionPool connectionPool, Address address,
+      boolean virtualThreads, int pingIntervalMillis) {
     this.connectionPool = connectionPool;
     this.address = address;
+    this.virtualThreads = virtualThreads;
+    this.pingIntervalMillis = pingIntervalMillis;
     this.routeSelector = new RouteSelector(address, routeDatabase());
   }
 
@@ -100,13 +126,18 @@ public final class StreamAllocation {
    * @param writeTimeout
    * @param connectionRetryEnabled
    * @param doExtensiveHealthChecks
+   * @param pipelinable true if the stream's request is idempotent and has no body, so it may be
+   *     pipelined on an HTTP/1.1 connection that is carrying other such requests.
    * @return
    * @throws RouteException
      * @throws IOException
      */
   public HttpStream newStream(int connectTimeout, int readTimeout, int writeTimeout,
-      boolean connectionRetryEnabled, boolean doExtensiveHealthChecks)
+      boolean connectionRetryEnabled, boolean doExtensiveHealthChecks, boolean pipelinable)
       throws RouteException, IOException {
+    synchronized (connectionPool) {
+      this.pipelinable = pipelinable;
+    }
     try {
       //与远程socket建立了I/O连接
       RealConnection resultConnection = findHealthyConnection(connectTimeout, readTimeout,
@@ -119,7 +150,10 @@ public final class StreamAllocation {
         resultConnection.socket().setSoTimeout(readTimeout);
         resultConnection.source.timeout().timeout(readTimeout, MILLISECONDS);
         resultConnection.sink.timeout().timeout(writeTimeout, MILLISECONDS);
-        resultStream = new Http1xStream(this, resultConnection.source, resultConnection.sink);
+        synchronized (connectionPool) {
+          resultStream = new Http1xStream(this, resultConnection.source, resultConnection.sink,
+              resultConnection.pipeline, resultConnection.allocations.size() > 1, readTimeout);
+        }
       }
 
       synchronized (connectionPool) {
@@ -147,11 +181,15 @@ public final class StreamAllocation {
           connectionRetryEnabled);
 
       // If this is a brand new connection, we can skip the extensive health checks.
+      boolean fresh;
       synchronized (connectionPool) {
         if (candidate.successCount == 0) {
           return candidate;
         }
+        // The pool checks idle connections in the background. Trust a recent check.
+        fresh = candidate.isFresh(System.nanoTime());
       }
+      if (fresh) doExtensiveHealthChecks = false;
 
       // Otherwise do a potentially-slow check to confirm that the pooled connection is still good.
       if (candidate.isHealthy(doExtensiveHealthChecks)) {
@@ -169,6 +207,10 @@ public final class StreamAllocation {
    */
   private RealConnection findConnection(int connectTimeout, int readTimeout, int writeTimeout,
       boolean connectionRetryEnabled) throws IOException, RouteException {
+    // Let go of a connection that stopped taking new streams since this allocation's last stream,
+    // such as one whose peer sent GOAWAY.
+    deallocate(false, false, false);
+
     Route selectedRoute;
     synchronized (connectionPool) {//加了个同步锁
       if (released) throw new IllegalStateException("released");
@@ -188,32 +230,169 @@ public final class StreamAllocation {
         return pooledConnection;
       }
 
+      // If another call is already connecting to this address, wait to share its connection.
+      if (Internal.instance.shouldAwaitConnect(connectionPool, address)) {
+        pooledConnection = awaitPooledConnection(connectTimeout);
+        if (pooledConnection != null) return pooledConnection;
+      }
+
       selectedRoute = route;
     }
 
     if (selectedRoute == null) {
-      selectedRoute = routeSelector.next();
+      List<Route> routes = routeSelector.nextRoutes();
+
+      // Now that we have IP addresses, look for an HTTP/2 connection to another host that we can
+      // coalesce with.
+      synchronized (connectionPool) {
+        if (canceled) throw new IOException("Canceled");
+        for (int i = 0, size = routes.size(); i < size; i++) {
+          Route candidate = routes.get(i);
+          RealConnection pooledConnection =
+              Internal.instance.get(connectionPool, address, this, candidate);
+          if (pooledConnection != null) {
+            this.route = candidate;
+            this.connection = pooledConnection;
+            return pooledConnection;
+          }
+        }
+      }
+
+      if (routes.size() > 1) {
+        return raceConnections(routes, connectTimeout, readTimeout, writeTimeout,
+            connectionRetryEnabled);
+      }
+      selectedRoute = routes.get(0);
       synchronized (connectionPool) {
         route = selectedRoute;
       }
     }
     // 如果没有的话就进入请求连接
-    RealConnection newConnection = new RealConnection(selectedRoute);
-    acquire(newConnection);
+    RealConnection newConnection =
+        new RealConnection(selectedRoute, virtualThreads, pingIntervalMillis);
 
     synchronized (connectionPool) {
+      // The address's policy may cap its connections or its concurrent connects. If so wait for a
+      // connection to free up or for another call's connect to finish.
+      if (Internal.instance.connectionLimitReached(connectionPool, address)
+          || Internal.instance.shouldAwaitConnect(connectionPool, address)) {
+        RealConnection pooledConnection = awaitPooledConnection(connectTimeout);
+        if (pooledConnection != null) return pooledConnection;
+      }
+      acquire(newConnection);
       Internal.instance.put(connectionPool, newConnection);
+      Internal.instance.connectStarted(connectionPool, address);
       this.connection = newConnection;
-      if (canceled) throw new IOException("Canceled");
     }
 
-    newConnection.connect(connectTimeout, readTimeout, writeTimeout, address.connectionSpecs(),
-        connectionRetryEnabled);
-    routeDatabase().connected(newConnection.route());
+    boolean connected = false;
+    try {
+      synchronized (connectionPool) {
+        if (canceled) throw new IOException("Canceled");
+      }
+      long connectStartNanos = System.nanoTime();
+      newConnection.connect(connectTimeout, readTimeout, writeTimeout, address.connectionSpecs(),
+          connectionRetryEnabled);
+      routeDatabase().connected(newConnection.route(), System.nanoTime() - connectStartNanos);
+      connected = true;
+    } finally {
+      synchronized (connectionPool) {
+        Internal.instance.connectFinished(
+            connectionPool, address, connected ? newConnection : null);
+      }
+    }
 
     return newConnection;
   }
 
+  /**
+   * Waits up to {@code timeoutMillis} for a pooled connection to {@code address} to become
+   * available, or for the address to drop below its connection limit. Returns the pooled connection,
+   * or null if this allocation may now open a new connection. 等待连接池中的连接被释放
+   *
+   * <p>This also waits while other calls are connecting to {@code address}, either because a
+   * multiplexed connection may result that this call can share, or because the address is at its
+   * concurrent connect limit. If that wait times out this returns null: the call makes its own
+   * connection rather than failing.
+   */
+  private RealConnection awaitPooledConnection(int timeoutMillis) throws IOException {
+    assert (Thread.holdsLock(connectionPool));
+    long timeoutNanos = timeoutMillis != 0 ? MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+    long deadlineNanos = System.nanoTime() + timeoutNanos;
+    while (true) {
+      if (canceled) throw new IOException("Canceled");
+
+      RealConnection pooledConnection = Internal.instance.get(connectionPool, address, this);
+      if (pooledConnection != null) {
+        this.connection = pooledConnection;
+        return pooledConnection;
+      }
+      boolean limitReached = Internal.instance.connectionLimitReached(connectionPool, address);
+      if (!limitReached && !Internal.instance.shouldAwaitConnect(connectionPool, address)) {
+        return null;
+      }
+
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        if (!limitReached) return null; // Stop waiting for other calls and connect ourselves.
+        throw new InterruptedIOException("timeout waiting for a connection to " + address.url());
+      }
+      try {
+        long waitMillis = remainingNanos / 1000000L;
+        connectionPool.wait(waitMillis, (int) (remainingNanos - waitMillis * 1000000L));
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /**
+   * Connects to {@code routes} concurrently and allocates the first connection to complete. Routes
+   * that fail are reported to the route selector. 多个线路竞速连接
+   */
+  private RealConnection raceConnections(List<Route> routes, int connectTimeout, int readTimeout,
+      int writeTimeout, boolean connectionRetryEnabled) throws IOException, RouteException {
+    ConnectionRace race;
+    int reserved;
+    synchronized (connectionPool) {
+      if (Internal.instance.connectionLimitReached(connectionPool, address)
+          || Internal.instance.shouldAwaitConnect(connectionPool, address)) {
+        RealConnection pooledConnection = awaitPooledConnection(connectTimeout);
+        if (pooledConnection != null) return pooledConnection;
+      }
+      if (canceled) throw new IOException("Canceled");
+      // Every concurrent attempt takes a connect slot, so run no more of them than the address has.
+      reserved = Internal.instance.reserveConnects(connectionPool, address, routes.size());
+      race = new ConnectionRace(connectionPool, routes, reserved, virtualThreads,
+          pingIntervalMillis, connectTimeout, readTimeout, writeTimeout, connectionRetryEnabled);
+      connectionRace = race;
+    }
+
+    RealConnection winner = null;
+    try {
+      winner = race.connect();
+    } finally {
+      synchronized (connectionPool) {
+        connectionRace = null;
+        if (winner != null) {
+          // Pool the winner before announcing it, so that waiting calls can share it.
+          route = winner.route();
+          acquire(winner);
+          Internal.instance.put(connectionPool, winner);
+          this.connection = winner;
+        }
+        Internal.instance.raceFinished(connectionPool, address, reserved, winner);
+      }
+      for (Map.Entry<Route, IOException> failure : race.failures().entrySet()) {
+        routeSelector.connectFailed(failure.getKey(), failure.getValue());
+      }
+    }
+    synchronized (connectionPool) {
+      if (canceled) throw new IOException("Canceled");
+    }
+    return winner;
+  }
+
   public void streamFinished(boolean noNewStreams, HttpStream stream) {
     synchronized (connectionPool) {
       if (stream == null || stream != this.stream) {
@@ -232,6 +411,14 @@ public final class StreamAllocation {
     }
   }
 
+  /**
+   * Returns true if this allocation's current request may share an HTTP/1.1 connection with other
+   * pipelined requests. Guarded by the connection pool.
+   */
+  public boolean isPipelinable() {
+    return pipelinable;
+  }
+
   private RouteDatabase routeDatabase() {
     return Internal.instance.routeDatabase(connectionPool);
   }
@@ -272,14 +459,7 @@ public final class StreamAllocation {
           connection.noNewStreams = true;
         }
         if (this.stream == null && (this.released || connection.noNewStreams)) {
-          release(connection);
-          if (connection.allocations.isEmpty()) {
-            connection.idleAtNanos = System.nanoTime();
-            if (Internal.instance.connectionBecameIdle(connectionPool, connection)) {
-              connectionToClose = connection;
-            }
-          }
-          connection = null;
+          connectionToClose = releaseConnection();
         }
       }
     }
@@ -288,18 +468,44 @@ public final class StreamAllocation {
     }
   }
 
+  /**
+   * Lets go of this allocation's connection. Returns the connection if it was removed from the
+   * pool and must be closed by the caller, or null.
+   */
+  private RealConnection releaseConnection() {
+    assert (Thread.holdsLock(connectionPool));
+    RealConnection connectionToClose = null;
+    release(connection);
+    if (connection.isMultiplexed() || connection.pipeline != null) {
+      connectionPool.notifyAll(); // Awake callers waiting for a stream on this connection.
+    }
+    if (connection.allocations.isEmpty()) {
+      connection.idleAtNanos = System.nanoTime();
+      if (Internal.instance.connectionBecameIdle(connectionPool, connection)) {
+        connectionToClose = connection;
+      }
+    }
+    connection = null;
+    return connectionToClose;
+  }
+
   public void cancel() {
     HttpStream streamToCancel;
     RealConnection connectionToCancel;
+    ConnectionRace raceToCancel;
     synchronized (connectionPool) {
       canceled = true;
+      connectionPool.notifyAll(); // Awake this allocation if it is waiting for a connection.
       streamToCancel = stream;
       connectionToCancel = connection;
+      raceToCancel = connectionRace;
     }
     if (streamToCancel != null) {
       streamToCancel.cancel();
     } else if (connectionToCancel != null) {
       connectionToCancel.cancel();
+    } else if (raceToCancel != null) {
+      raceToCancel.cancel();
     }
   }
 
@@ -321,7 +527,8 @@ public final class StreamAllocation {
    * {@link #release} on the same connection.
    */
   public void acquire(RealConnection connection) {
-    connection.allocations.add(new WeakReference<>(this));
+    connection.allocations.add(new StreamAllocationReference(
+        this, connection, Internal.instance.leakedAllocations(connectionPool)));
   }
 
   /** Remove this allocation from the connection's list of allocations. */
@@ -337,10 +544,52 @@ public final class StreamAllocation {
   }
 
   public boolean recover(IOException e, Sink requestBodyOut) {
+    boolean pipelined = false;
+    boolean refused = false;
+    RealConnection connectionToClose = null;
+    synchronized (connectionPool) {
+      if (pipelinable && stream instanceof Http1xStream
+          && ((Http1xStream) stream).isPipelined()) {
+        pipelined = true;
+        route = connection.route(); // The route is fine; replay on a fresh connection over it.
+      } else if (connection != null && isRefusedStream(e)
+          && refusedStreamCount++ < MAX_REFUSED_STREAM_REPLAYS) {
+        // The peer refused the stream without processing it, typically because it is going away.
+        // Let go of the stream and the connection here, so that closing the engine doesn't fail
+        // the connection: only one that is going away is given up, and the route stays pinned.
+        refused = true;
+        route = connection.route();
+        if (connection.allocationLimit() == 0) {
+          connection.noNewStreams = true;
+        }
+        stream = null;
+        connectionToClose = releaseConnection();
+      }
+    }
+
+    // Any refused request can be replayed, even over the only route, as long as its body can be.
+    if (refused) {
+      if (connectionToClose != null) {
+        Util.closeQuietly(connectionToClose.socket());
+      }
+      return requestBodyOut == null || requestBodyOut instanceof RetryableSink;
+    }
+
+    if (pipelined) {
+      Internal.instance.pipeliningFailed(connectionPool, address);
+    }
+
     if (connection != null) {
       connectionFailed(e);
     }
 
+    // A pipelined request may have been lost to another exchange's failure. It's idempotent, so
+    // replay it. The address no longer pipelines, so a replay that fails again isn't replayed.
+    if (pipelined
+        && (!(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException)) {
+      return true;
+    }
+
     boolean canRetryRequestBody = requestBodyOut == null || requestBodyOut instanceof RetryableSink;
     if ((routeSelector != null && !routeSelector.hasNext()) // No more routes to attempt.
         || !isRecoverable(e)
@@ -351,6 +600,13 @@ public final class StreamAllocation {
     return true;
   }
 
+  /** Returns true if {@code e} shows that the peer didn't process the stream at all. */
+  private boolean isRefusedStream(IOException e) {
+    if (e instanceof ConnectionShutdownException) return true;
+    return e instanceof StreamResetException
+        && ((StreamResetException) e).errorCode == ErrorCode.REFUSED_STREAM;
+  }
+
   private boolean isRecoverable(IOException e) {
     // If there was a protocol problem, don't recover.
     if (e instanceof ProtocolException) {
@@ -386,4 +642,19 @@ public final class StreamAllocation {
   @Override public String toString() {
     return address.toString();
   }
+
+  /**
+   * A connection's weak reference to an allocation it carries. If the allocation is collected
+   * without being released the reference is enqueued, which lets the pool find leaked connections
+   * without scanning them.
+   */
+  public static final class StreamAllocationReference extends WeakReference<StreamAllocation> {
+    public final RealConnection connection;
+
+    StreamAllocationReference(StreamAllocation referent, RealConnection connection,
+        ReferenceQueue<StreamAllocation> queue) {
+      super(referent, queue);
+      this.connection = connection;
+    }
+  }
 }
@@ -33,6 +33,7 @@ import javax.net.ssl.SSLSocketFactory;
 import okhttp3.Address;
 import okhttp3.CertificatePinner;
 import okhttp3.Connection;
+import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Handshake;
 import okhttp3.HttpUrl;
@@ -40,11 +41,16 @@ import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.Route;
+import okhttp3.TlsSessionCache;
 import okhttp3.internal.ConnectionSpecSelector;
+import okhttp3.internal.Internal;
 import okhttp3.internal.Platform;
 import okhttp3.internal.Util;
 import okhttp3.internal.Version;
 import okhttp3.internal.framed.FramedConnection;
+import okhttp3.internal.framed.FramedStream;
+import okhttp3.internal.framed.Ping;
+import okhttp3.internal.http.Http1Pipeline;
 import okhttp3.internal.http.Http1xStream;
 import okhttp3.internal.http.OkHeaders;
 import okhttp3.internal.http.RouteException;
@@ -58,6 +64,7 @@ import okio.Source;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PROXY_AUTH;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static okhttp3.internal.Util.closeQuietly;
 
 /**
@@ -73,8 +80,20 @@ import static okhttp3.internal.Util.closeQuietly;
 
  */
 public final class RealConnection implements Connection {
+  /**
+   * How long a health check is trusted. The connection pool checks idle HTTP/1 connections in the
+   * background at this interval so that calls can skip the check.
+   */
+  public static final long HEALTH_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
   private final Route route;
 
+  /** True if background work for this connection should run on virtual threads. */
+  private final boolean virtualThreads;
+
+  /** How often the pool pings this connection while it is idle and multiplexed, or 0. */
+  private final long pingIntervalNanos;
+
   /** The low-level TCP socket. */
   private Socket rawSocket;
 
@@ -96,13 +115,62 @@ public final class RealConnection implements Connection {
   public boolean noNewStreams;
   public long idleAtNanos = Long.MAX_VALUE;
 
+  /**
+   * Orders the exchanges of this connection if its address permits HTTP/1.1 pipelining, or null.
+   * Set by the connection pool when the connection is pooled.
+   */
+  public Http1Pipeline pipeline;
+
+  /** When this connection was last known to be healthy, if {@link #healthChecked}. */
+  public long healthyAtNanos;
+  public boolean healthChecked;
+
+  /** True while the connection pool is checking this idle connection's health. */
+  public boolean healthCheckRunning;
+
+  /** The unanswered keepalive ping of this idle connection, or null. Guarded by the pool. */
+  public Ping keepAlivePing;
+
+  /**
+   * When the pool next pings this idle connection or, if {@link #keepAlivePing} is non-null, stops
+   * waiting for the ping's response. Guarded by the pool.
+   */
+  public long keepAliveAtNanos;
+
+  /** True once the TCP connect has completed, even if the TLS handshake hasn't. */
+  private volatile boolean socketConnected;
+
+  /**
+   * The pool holding this connection, or null. Set by the pool when the connection is pooled so
+   * that a GOAWAY from the peer can take it out of service.
+   */
+  public volatile ConnectionPool pool;
+
+  /** The options of the last {@link #connect}, reused to connect a replacement. */
+  private int connectTimeout;
+  private int readTimeout;
+  private int writeTimeout;
+  private List<ConnectionSpec> connectionSpecs;
+  private boolean connectionRetryEnabled;
+
   public RealConnection(Route route) {
+    this(route, false, 0);
+  }
+
+  public RealConnection(Route route, boolean virtualThreads, int pingIntervalMillis) {
     this.route = route;
+    this.virtualThreads = virtualThreads;
+    this.pingIntervalNanos = MILLISECONDS.toNanos(pingIntervalMillis);
   }
 
   public void connect(int connectTimeout, int readTimeout, int writeTimeout,
       List<ConnectionSpec> connectionSpecs, boolean connectionRetryEnabled) throws RouteException {
     if (protocol != null) throw new IllegalStateException("already connected");
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.writeTimeout = writeTimeout;
+    this.connectionSpecs = connectionSpecs;
+    this.connectionRetryEnabled = connectionRetryEnabled;
 
     RouteException routeException = null;
     ConnectionSpecSelector connectionSpecSelector = new ConnectionSpecSelector(connectionSpecs);
@@ -126,6 +194,7 @@ public final class RealConnection implements Connection {
         closeQuietly(rawSocket);
         socket = null;
         rawSocket = null;
+        socketConnected = false;
         source = null;
         sink = null;
         handshake = null;
@@ -154,6 +223,7 @@ public final class RealConnection implements Connection {
     } catch (ConnectException e) {
       throw new ConnectException("Failed to connect to " + route.socketAddress());
     }
+    socketConnected = true;
     //source 用于获取response
     source = Okio.buffer(Okio.source(rawSocket));
     //sink 用于write buffer 到server
@@ -173,6 +243,19 @@ public final class RealConnection implements Connection {
       FramedConnection framedConnection = new FramedConnection.Builder(true)
           .socket(socket, route.address().url().host(), source, sink)
           .protocol(protocol)
+          .virtualThreads(virtualThreads)
+          .listener(new FramedConnection.Listener() {
+            @Override public void onStream(FramedStream stream) throws IOException {
+              REFUSE_INCOMING_STREAMS.onStream(stream);
+            }
+
+            @Override public void onGoAway(FramedConnection framedConnection) {
+              ConnectionPool pool = RealConnection.this.pool;
+              if (pool != null) {
+                Internal.instance.connectionDraining(pool, RealConnection.this);
+              }
+            }
+          })
           .build();
       framedConnection.sendConnectionPreface();
 
@@ -192,21 +275,31 @@ public final class RealConnection implements Connection {
     SSLSocketFactory sslSocketFactory = address.sslSocketFactory();
     boolean success = false;
     SSLSocket sslSocket = null;
+    ConnectionSpec connectionSpec = null;
+    TlsSessionCache tlsSessionCache = address.tlsSessionCache();
     try {
       // Create the wrapper over the connected socket.
       sslSocket = (SSLSocket) sslSocketFactory.createSocket(
           rawSocket, address.url().host(), address.url().port(), true /* autoClose */);
 
       // Configure the socket's ciphers, TLS versions, and extensions.
-      ConnectionSpec connectionSpec = connectionSpecSelector.configureSecureSocket(sslSocket);
+      connectionSpec = connectionSpecSelector.configureSecureSocket(sslSocket);
       if (connectionSpec.supportsTlsExtensions()) {
         Platform.get().configureTlsExtensions(
             sslSocket, address.url().host(), address.protocols());
       }
+      if (tlsSessionCache != null) {
+        Internal.instance.tlsHandshakeStarting(tlsSessionCache, address.url().host(),
+            address.url().port(), connectionSpec);
+      }
 
       // Force handshake. This can throw!
       sslSocket.startHandshake();
       Handshake unverifiedHandshake = Handshake.get(sslSocket.getSession());
+      if (tlsSessionCache != null) {
+        Internal.instance.tlsHandshakeSucceeded(tlsSessionCache, address.url().host(),
+            address.url().port(), connectionSpec, sslSocket.getSession());
+      }
 
       // Verify that the socket's certificates are acceptable for the target host.
       if (!address.hostnameVerifier().verify(address.url().host(), sslSocket.getSession())) {
@@ -242,6 +335,10 @@ public final class RealConnection implements Connection {
       }
       if (!success) {
         closeQuietly(sslSocket);
+        if (tlsSessionCache != null && connectionSpec != null) {
+          Internal.instance.tlsHandshakeFailed(tlsSessionCache, address.url().host(),
+              address.url().port(), connectionSpec);
+        }
       }
     }
   }
@@ -319,20 +416,46 @@ public final class RealConnection implements Connection {
     return route;
   }
 
+  public boolean virtualThreads() {
+    return virtualThreads;
+  }
+
+  /** Returns how often this connection is pinged while idle, or 0 if it isn't. */
+  public long pingIntervalNanos() {
+    return pingIntervalNanos;
+  }
+
+  /**
+   * Connects and returns a new connection over this connection's route, using the same options.
+   * This is how the pool replaces a connection whose peer is going away.
+   */
+  public RealConnection connectReplacement() throws RouteException {
+    RealConnection replacement = new RealConnection(
+        route, virtualThreads, (int) MILLISECONDS.convert(pingIntervalNanos, NANOSECONDS));
+    replacement.connect(
+        connectTimeout, readTimeout, writeTimeout, connectionSpecs, connectionRetryEnabled);
+    return replacement;
+  }
+
   public void cancel() {
     // Close the raw socket so we don't end up doing synchronous I/O.
     closeQuietly(rawSocket);
   }
 
+  /** Returns true if this connection's TCP connect has completed. */
+  public boolean isSocketConnected() {
+    return socketConnected;
+  }
+
   @Override public Socket socket() {
     return socket;
   }
 
   public int allocationLimit() {
     FramedConnection framedConnection = this.framedConnection;
-    return framedConnection != null
-        ? framedConnection.maxConcurrentStreams()
-        : 1;
+    if (framedConnection == null) return 1;
+    // A connection whose peer sent GOAWAY takes no new streams, even before the pool hears of it.
+    return framedConnection.isShutdown() ? 0 : framedConnection.maxConcurrentStreams();
   }
 
   /** Returns true if this connection is ready to host new streams. */
@@ -342,10 +465,11 @@ public final class RealConnection implements Connection {
     }
 
     if (framedConnection != null) {
-      return true; // TODO: check framedConnection.shutdown.
+      return !framedConnection.isShutdown();
     }
 
-    if (doExtensiveChecks) {
+    // Reading from a pipelined connection with exchanges in flight would race their responses.
+    if (doExtensiveChecks && (pipeline == null || pipeline.isIdle())) {
       try {
         int readTimeout = socket.getSoTimeout();
         try {
@@ -367,10 +491,68 @@ public final class RealConnection implements Connection {
     return true;
   }
 
+  /**
+   * Returns true if this connection was found healthy, or was last used, recently enough that
+   * {@link #isHealthy(boolean) extensive checks} can be skipped. 最近检查过，调用方无需再探测
+   */
+  public boolean isFresh(long nowNanos) {
+    return healthChecked && nowNanos - healthyAtNanos < HEALTH_CHECK_INTERVAL_NANOS;
+  }
+
   @Override public Handshake handshake() {
     return handshake;
   }
 
+  /**
+   * Returns true if this connection can carry a stream to {@code address}. If {@code route} is
+   * non-null, it is the resolved route for a connection to {@code address}; a multiplexed
+   * connection to a different host may then be shared ("coalesced") if it uses the same IP
+   * address and its certificate covers both hosts. 判断能否复用此连接，HTTP/2连接可跨域名合并
+   */
+  public boolean isEligible(Address address, Route route) {
+    // If this connection is not accepting new streams, we're done.
+    if (allocations.size() >= allocationLimit() || noNewStreams) return false;
+
+    // If the non-host fields of the address don't overlap, we're done.
+    if (!Internal.instance.equalsNonHost(this.route.address(), address)) return false;
+
+    // If the host exactly matches, we're done: this connection can carry the address.
+    if (address.url().host().equals(this.route.address().url().host())
+        && address.url().port() == this.route.address().url().port()) {
+      return true;
+    }
+
+    // At this point we don't have a hostname match. But we may still be able to carry the request if
+    // our connection coalescing requirements are met.
+
+    // 1. This connection must be HTTP/2.
+    if (framedConnection == null || protocol != Protocol.HTTP_2) return false;
+
+    // 2. The routes must share an IP address. This requires us to have a DNS address for both
+    // hosts, which only happens after route planning. We can't coalesce connections that use a
+    // proxy, since proxies don't tell us the origin server's IP address.
+    if (route == null) return false;
+    if (route.proxy().type() != Proxy.Type.DIRECT) return false;
+    if (this.route.proxy().type() != Proxy.Type.DIRECT) return false;
+    if (!this.route.socketAddress().equals(route.socketAddress())) return false;
+
+    // 3. This connection's server certificate must cover the new host.
+    if (address.hostnameVerifier() != OkHostnameVerifier.INSTANCE) return false;
+    if (address.url().port() != this.route.address().url().port()) return false;
+    if (handshake == null || handshake.peerCertificates().isEmpty()) return false;
+    X509Certificate certificate = (X509Certificate) handshake.peerCertificates().get(0);
+    if (!OkHostnameVerifier.INSTANCE.verify(address.url().host(), certificate)) return false;
+
+    // 4. Certificate pinning must match the host.
+    try {
+      address.certificatePinner().check(address.url().host(), handshake.peerCertificates());
+    } catch (SSLPeerUnverifiedException e) {
+      return false;
+    }
+
+    return true; // The caller's address can be carried by this connection.
+  }
+
   /**
    * Returns true if this is a SPDY connection. Such connections can be used in multiple HTTP
    * requests simultaneously.